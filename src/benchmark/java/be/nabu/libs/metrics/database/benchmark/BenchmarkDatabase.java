@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+import be.nabu.libs.metrics.database.api.PartitionConfigurationProvider;
+
+/**
+ * A database in a temporary directory with synthetic sinks.
+ * The sinks are named "sink-<index>" in the category "benchmark", their points are a second apart and follow a random walk so they do not compress unrealistically well.
+ */
+public class BenchmarkDatabase {
+
+	public static final String CATEGORY = "benchmark";
+	// the first generated timestamp
+	public static final long START = 1500000000000L;
+	// the time between two generated points
+	public static final long STEP = 1000;
+
+	private TemporaryDirectory directory, root, temporary;
+	private long partitionSize;
+	private PartitionFormat format;
+	private long [] statisticsWindows = new long[0];
+	private long reorderWindow;
+	private boolean lateDataAllowed;
+	private PartitionConfigurationProvider configuration = new PartitionConfigurationProvider() {
+		@Override
+		public long getPartitionInterval(String id, String category) {
+			// a day, at one point per second the partitions are cut by size
+			return 86400000L;
+		}
+		@Override
+		public long getPartitionSize(String id, String category) {
+			return partitionSize;
+		}
+		@Override
+		public long[] getStatisticsWindows(String id, String category) {
+			return statisticsWindows;
+		}
+		@Override
+		public long getReorderWindow(String id, String category) {
+			return reorderWindow;
+		}
+		@Override
+		public boolean isLateDataAllowed(String id, String category) {
+			return lateDataAllowed;
+		}
+	};
+
+	public BenchmarkDatabase(long partitionSize, PartitionFormat format) throws IOException {
+		this.partitionSize = partitionSize;
+		this.format = format;
+		this.directory = TemporaryDirectory.create("metrics-database-benchmark");
+		this.root = directory.getDirectory("root");
+		this.temporary = directory.getDirectory("temporary");
+	}
+
+	public PartitionedSinkProvider newProvider() {
+		PartitionedSinkProvider provider = new PartitionedSinkProvider(configuration, root, temporary);
+		provider.setPartitionFormat(format);
+		return provider;
+	}
+
+	public static String getId(int index) {
+		return "sink-" + index;
+	}
+
+	/**
+	 * Fills the given amount of sinks with complete partitions and returns the timestamp after the last generated point
+	 */
+	public long generate(int sinks, int partitions) {
+		int size = (int) (partitionSize * partitions);
+		long [] timestamps = new long[size];
+		long [] values = new long[size];
+		PartitionedSinkProvider provider = newProvider();
+		try {
+			for (int i = 0; i < sinks; i++) {
+				fill(timestamps, values, START, i);
+				provider.getSink(getId(i), CATEGORY).pushAll(timestamps, values, 0, size);
+			}
+		}
+		finally {
+			provider.close();
+		}
+		return START + size * STEP;
+	}
+
+	/**
+	 * Fills the arrays with consecutive points starting at the given timestamp, the seed determines the values
+	 */
+	public static void fill(long [] timestamps, long [] values, long start, long seed) {
+		Random random = new Random(seed);
+		long value = 1000;
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = start + i * STEP;
+			value = Math.max(0, value + random.nextInt(21) - 10);
+			values[i] = value;
+		}
+	}
+
+	public PartitionedSink getSink(PartitionedSinkProvider provider, int index) {
+		return provider.getSink(getId(index), CATEGORY);
+	}
+
+	public void setStatisticsWindows(long...statisticsWindows) {
+		this.statisticsWindows = statisticsWindows;
+	}
+
+	public void setReorderWindow(long reorderWindow) {
+		this.reorderWindow = reorderWindow;
+	}
+
+	public void setLateDataAllowed(boolean lateDataAllowed) {
+		this.lateDataAllowed = lateDataAllowed;
+	}
+
+	public long getPartitionSize() {
+		return partitionSize;
+	}
+
+	public TemporaryDirectory getDirectory() {
+		return directory;
+	}
+
+	public void delete() throws IOException {
+		directory.delete();
+	}
+}
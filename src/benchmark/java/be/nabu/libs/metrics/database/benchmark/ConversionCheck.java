@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.metrics.core.api.SinkValue;
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+
+/**
+ * Not a benchmark but a plain check: converts the partitions of a database from csv to binary and back while the sinks are open, every point must survive both conversions and a restart.
+ * Run it with the test classpath of the benchmark profile, it throws an exception if a point differs.
+ */
+public class ConversionCheck {
+
+	private static final int SINKS = 3, PARTITIONS = 5, PARTITION_SIZE = 1000;
+
+	public static void main(String...args) throws IOException {
+		BenchmarkDatabase database = new BenchmarkDatabase(PARTITION_SIZE, PartitionFormat.CSV);
+		try {
+			database.generate(SINKS - 1, PARTITIONS);
+			PartitionedSinkProvider provider = database.newProvider();
+			irregular(database.getSink(provider, SINKS - 1));
+			List<List<SinkValue>> expected = new ArrayList<List<SinkValue>>();
+			for (int i = 0; i < SINKS; i++) {
+				expected.add(read(database.getSink(provider, i)));
+			}
+			int converted = provider.convert(PartitionFormat.BINARY);
+			if (converted == 0) {
+				throw new IllegalStateException("No partitions were converted to binary");
+			}
+			verify(database, provider, expected, "binary");
+			if (provider.convert(PartitionFormat.BINARY) != 0) {
+				throw new IllegalStateException("Partitions were left in csv");
+			}
+			provider.convert(PartitionFormat.CSV);
+			verify(database, provider, expected, "csv");
+			provider.close();
+			provider = database.newProvider();
+			verify(database, provider, expected, "restart");
+			provider.close();
+			System.out.println("Converted " + converted + " partitions to binary and back");
+		}
+		finally {
+			database.delete();
+		}
+	}
+
+	// points that are not a fixed step apart with negative, large and repeated values, written as complete partitions
+	private static void irregular(PartitionedSink sink) {
+		int size = PARTITION_SIZE * PARTITIONS;
+		long [] timestamps = new long[size], values = new long[size];
+		long timestamp = BenchmarkDatabase.START;
+		for (int i = 0; i < size; i++) {
+			timestamp += i % 7 == 0 ? 0 : (i % 13) * 997;
+			timestamps[i] = timestamp;
+			values[i] = i % 5 == 0 ? -i : (i % 11 == 0 ? Long.MAX_VALUE / (i + 1) : i % 3);
+		}
+		sink.pushAll(timestamps, values, 0, size);
+		// roll the last partition to disk as well
+		sink.push(timestamp + BenchmarkDatabase.STEP * 86400, 0);
+	}
+
+	private static List<SinkValue> read(PartitionedSink sink) {
+		return sink.getSnapshotBetween(0, Long.MAX_VALUE).getValues();
+	}
+
+	private static void verify(BenchmarkDatabase database, PartitionedSinkProvider provider, List<List<SinkValue>> expected, String stage) {
+		for (int i = 0; i < expected.size(); i++) {
+			List<SinkValue> actual = read(database.getSink(provider, i));
+			if (actual.size() != expected.get(i).size()) {
+				throw new IllegalStateException("Sink " + i + " has " + actual.size() + " points instead of " + expected.get(i).size() + " after " + stage);
+			}
+			for (int j = 0; j < actual.size(); j++) {
+				SinkValue a = actual.get(j), e = expected.get(i).get(j);
+				if (a.getTimestamp() != e.getTimestamp() || a.getValue() != e.getValue()) {
+					throw new IllegalStateException("Point " + j + " of sink " + i + " is " + a.getTimestamp() + "=" + a.getValue() + " instead of " + e.getTimestamp() + "=" + e.getValue() + " after " + stage);
+				}
+			}
+		}
+	}
+}
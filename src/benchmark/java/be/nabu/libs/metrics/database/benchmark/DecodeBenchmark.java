@@ -0,0 +1,169 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import be.nabu.libs.metrics.database.CsvDecoder;
+import be.nabu.libs.metrics.database.MappedStorage;
+import be.nabu.libs.metrics.database.PartitionCodec;
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.ResourceManager;
+import be.nabu.libs.metrics.database.TimeSeries;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+
+/**
+ * Decoding a single partition: the csv decoder against a string based parser like the one it replaced, the binary codec, and reading a partition through the resource streams against a memory mapped read.
+ * Encoding a partition in either format reports its size on disk as the "bytesPerPoint" counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecodeBenchmark {
+
+	// the amount of points in the partition
+	@Param({ "1000", "100000" })
+	public int points;
+
+	private TemporaryDirectory directory;
+	private TimeSeries series;
+	private byte [] csv, binary;
+	private Resource csvPartition, binaryPartition;
+	private File binaryFile;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Size {
+		public double bytesPerPoint;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		long [] timestamps = new long[points], values = new long[points];
+		BenchmarkDatabase.fill(timestamps, values, BenchmarkDatabase.START, 0);
+		series = new TimeSeries(points);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < points; i++) {
+			series.add(timestamps[i], values[i]);
+			builder.append(timestamps[i]).append(',').append(values[i]).append('\n');
+		}
+		csv = builder.toString().getBytes(Charset.forName("ASCII"));
+		binary = PartitionCodec.encode(series);
+		directory = TemporaryDirectory.create("metrics-database-benchmark");
+		csvPartition = directory.create(BenchmarkDatabase.START + PartitionFormat.CSV.getExtension(), PartitionFormat.CSV.getContentType());
+		ResourceManager.save(csvPartition, series, PartitionFormat.CSV);
+		binaryPartition = directory.create(BenchmarkDatabase.START + PartitionFormat.BINARY.getExtension(), PartitionFormat.BINARY.getContentType());
+		ResourceManager.save(binaryPartition, series, PartitionFormat.BINARY);
+		binaryFile = MappedStorage.getFile(binaryPartition);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		directory.delete();
+	}
+
+	@Benchmark
+	public void csvDecoder(Blackhole blackhole) throws IOException, ParseException {
+		CsvDecoder decoder = new CsvDecoder(new ByteArrayInputStream(csv));
+		while (decoder.next()) {
+			blackhole.consume(decoder.getTimestamp());
+			blackhole.consume(decoder.getValue());
+		}
+	}
+
+	// a line based parser that creates strings, the way csv partitions used to be read
+	@Benchmark
+	public void csvStrings(Blackhole blackhole) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), Charset.forName("ASCII")));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int index = line.indexOf(',');
+			blackhole.consume(Long.parseLong(line.substring(0, index)));
+			blackhole.consume(Long.parseLong(line.substring(index + 1)));
+		}
+	}
+
+	@Benchmark
+	public TimeSeries binaryDecode() throws ParseException {
+		return PartitionCodec.decode(binary, binary.length);
+	}
+
+	// a gzipped csv partition read through the resource streams
+	@Benchmark
+	public TimeSeries csvPartition() throws IOException, ParseException {
+		return ResourceManager.loadSeries(csvPartition);
+	}
+
+	// a binary partition read through the resource streams
+	@Benchmark
+	public TimeSeries binaryPartition() throws IOException, ParseException {
+		return ResourceManager.loadSeries(binaryPartition);
+	}
+
+	// a binary partition decoded straight from a memory mapped file
+	@Benchmark
+	public TimeSeries binaryPartitionMapped() throws IOException, ParseException {
+		return MappedStorage.loadSeries(binaryFile);
+	}
+
+	// a gzipped csv partition as it is written on rollover
+	@Benchmark
+	public void csvEncode(Size size) throws IOException {
+		encode(csvPartition, PartitionFormat.CSV, size);
+	}
+
+	// a binary partition as it is written on rollover
+	@Benchmark
+	public void binaryEncode(Size size) throws IOException {
+		encode(binaryPartition, PartitionFormat.BINARY, size);
+	}
+
+	// the partitions are rewritten with the same points so the decode benchmarks are not affected
+	private void encode(Resource partition, PartitionFormat format, Size size) throws IOException {
+		ResourceManager.save(partition, series, format);
+		size.bytesPerPoint = (double) ((FiniteResource) partition).getSize() / points;
+	}
+}
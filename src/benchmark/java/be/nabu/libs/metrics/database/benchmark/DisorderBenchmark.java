@@ -0,0 +1,136 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
+
+/**
+ * The throughput of push when part of the points arrive out of order, either within the reorder window or so late that they end up in the delta file of a closed partition.
+ * At the end of a trial the sink must contain every pushed point in order, before and after reopening it, so a broken reorder or delta path fails the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DisorderBenchmark {
+
+	// the percentage of points that arrive out of order
+	@Param({ "0", "1", "10" })
+	public int disorder;
+
+	// how many points an out of order point is behind at most
+	@Param({ "5", "5000" })
+	public int displacement;
+
+	// in ms, without a window every out of order point is a late point
+	@Param({ "0", "10000" })
+	public long reorderWindow;
+
+	@Param({ "1000" })
+	public long partitionSize;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+	private PartitionedSink sink;
+	private Random random;
+	private long clock, value, pushed;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(partitionSize, PartitionFormat.BINARY);
+		database.setReorderWindow(reorderWindow);
+		database.setLateDataAllowed(true);
+		provider = database.newProvider();
+		sink = database.getSink(provider, 0);
+		random = new Random(0);
+		clock = BenchmarkDatabase.START;
+		value = 0;
+		pushed = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try {
+			verify(sink);
+			provider.close();
+			provider = database.newProvider();
+			verify(database.getSink(provider, 0));
+		}
+		finally {
+			provider.close();
+			database.delete();
+		}
+	}
+
+	@Benchmark
+	public void push() {
+		long timestamp;
+		if (disorder > 0 && random.nextInt(100) < disorder && clock > BenchmarkDatabase.START + displacement * BenchmarkDatabase.STEP) {
+			// a millisecond off the regular points so it never has the same timestamp as one of them
+			timestamp = clock - (1 + random.nextInt(displacement)) * BenchmarkDatabase.STEP - 1;
+		}
+		else {
+			clock += BenchmarkDatabase.STEP;
+			timestamp = clock;
+		}
+		sink.push(timestamp, value++ & 1023);
+		pushed++;
+	}
+
+	private void verify(PartitionedSink sink) {
+		final long [] found = new long[] { 0, Long.MIN_VALUE };
+		sink.scan(BenchmarkDatabase.START, Long.MAX_VALUE, new LongPairConsumer() {
+			@Override
+			public void accept(long timestamp, long value) {
+				if (timestamp < found[1]) {
+					throw new IllegalStateException("The point at " + timestamp + " comes after the point at " + found[1]);
+				}
+				found[0]++;
+				found[1] = timestamp;
+			}
+		});
+		if (found[0] != pushed) {
+			throw new IllegalStateException("The sink has " + found[0] + " points, " + pushed + " were pushed");
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+
+/**
+ * The heap retained per resident sink, reported as the "bytesPerSink" counter.
+ * Every sink holds a partially filled partition, the statistics and, depending on the parameter, rolling windows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class MemoryBenchmark {
+
+	@Param({ "1000" })
+	public int sinks;
+
+	// the amount of points in the current partition of every sink
+	@Param({ "10", "500" })
+	public int points;
+
+	@Param({ "false", "true" })
+	public boolean statisticsWindows;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+		public long bytesPerSink;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(1000, PartitionFormat.BINARY);
+		if (statisticsWindows) {
+			database.setStatisticsWindows(60000, 300000, 3600000);
+		}
+		PartitionedSinkProvider provider = database.newProvider();
+		try {
+			for (int i = 0; i < sinks; i++) {
+				for (int j = 0; j < points; j++) {
+					database.getSink(provider, i).push(BenchmarkDatabase.START + j * BenchmarkDatabase.STEP, j);
+				}
+			}
+		}
+		finally {
+			provider.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		database.delete();
+	}
+
+	@Benchmark
+	public PartitionedSinkProvider resident(Footprint footprint) {
+		long before = getUsedMemory();
+		provider = database.newProvider();
+		for (int i = 0; i < sinks; i++) {
+			database.getSink(provider, i);
+		}
+		footprint.bytesPerSink = (getUsedMemory() - before) / sinks;
+		return provider;
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		if (provider != null) {
+			provider.close();
+			provider = null;
+		}
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		// a few collections to get rid of the garbage created by opening the sinks
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
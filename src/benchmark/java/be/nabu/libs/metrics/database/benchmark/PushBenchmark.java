@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+
+/**
+ * The throughput and the latency distribution (see the p0.99 of the sample time) of push, with 1 up to 64 producers pushing to the same sinks.
+ * Every thread pushes to the sinks in turn, the timestamps come from a clock per sink so the points arrive (nearly) in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PushBenchmark {
+
+	// the amount of sinks that are pushed to
+	@Param({ "1", "1000" })
+	public int sinks;
+
+	@Param({ "1000" })
+	public long partitionSize;
+
+	@Param({ "BINARY" })
+	public PartitionFormat format;
+
+	// 0 pushes synchronously, otherwise the points go through an ingestion buffer of this size
+	@Param({ "0", "65536" })
+	public int ingestionBufferSize;
+
+	// 0 seals the partitions on the pushing thread
+	@Param({ "0", "2" })
+	public int rolloverThreads;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+	private PartitionedSink [] targets;
+	private AtomicLong [] clocks;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(partitionSize, format);
+		provider = database.newProvider();
+		provider.setIngestionBufferSize(ingestionBufferSize);
+		provider.setRolloverThreads(rolloverThreads);
+		targets = new PartitionedSink[sinks];
+		clocks = new AtomicLong[sinks];
+		for (int i = 0; i < sinks; i++) {
+			targets[i] = database.getSink(provider, i);
+			clocks[i] = new AtomicLong(BenchmarkDatabase.START);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		provider.close();
+		database.delete();
+	}
+
+	@State(Scope.Thread)
+	public static class Producer {
+		private int next;
+		private long value;
+	}
+
+	// the producer count can not be a parameter so there is a benchmark per count
+	@Benchmark
+	public void push(Producer producer) {
+		push(producer, this);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void push4(Producer producer) {
+		push(producer, this);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void push16(Producer producer) {
+		push(producer, this);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void push64(Producer producer) {
+		push(producer, this);
+	}
+
+	private static void push(Producer producer, PushBenchmark benchmark) {
+		int index = producer.next;
+		producer.next = (index + 1) % benchmark.sinks;
+		long timestamp = benchmark.clocks[index].addAndGet(BenchmarkDatabase.STEP);
+		try {
+			benchmark.targets[index].push(timestamp, producer.value++ & 1023);
+		}
+		// without an ingestion buffer a thread can lose the race to a newer point on the same sink, the point is rejected like it would be in production
+		catch (IllegalArgumentException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+
+/**
+ * The cost of filling and sealing one partition: every invocation pushes exactly one partition worth of points so every invocation does one rollover.
+ * Comparing with the push throughput gives the share of the rollover itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RolloverBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int partitionSize;
+
+	@Param({ "CSV", "BINARY" })
+	public PartitionFormat format;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+	private PartitionedSink sink;
+	private long [] timestamps, values, shifted;
+	private long offset;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(partitionSize, format);
+		provider = database.newProvider();
+		sink = database.getSink(provider, 0);
+		timestamps = new long[partitionSize];
+		values = new long[partitionSize];
+		shifted = new long[partitionSize];
+		BenchmarkDatabase.fill(timestamps, values, BenchmarkDatabase.START, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		provider.close();
+		database.delete();
+	}
+
+	@Benchmark
+	public void rollover() {
+		for (int i = 0; i < partitionSize; i++) {
+			sink.push(timestamps[i] + offset, values[i]);
+		}
+		offset += partitionSize * BenchmarkDatabase.STEP;
+	}
+
+	// a complete partition in one batch is written directly instead of going through the current partition
+	@Benchmark
+	public void rolloverBatch() {
+		for (int i = 0; i < partitionSize; i++) {
+			shifted[i] = timestamps[i] + offset;
+		}
+		sink.pushAll(shifted, values, 0, partitionSize);
+		offset += partitionSize * BenchmarkDatabase.STEP;
+	}
+}
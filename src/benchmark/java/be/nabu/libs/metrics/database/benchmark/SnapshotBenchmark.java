@@ -0,0 +1,128 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import be.nabu.libs.metrics.core.api.SinkSnapshot;
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSink;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
+
+/**
+ * The latency of the queries on a sink with a history of the given depth (in partitions).
+ * The history is generated once per trial, the sink is reopened for every trial so the partition index and cache start cold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SnapshotBenchmark {
+
+	// the amount of sealed partitions in the history
+	@Param({ "10", "100", "1000" })
+	public int depth;
+
+	@Param({ "1000" })
+	public int partitionSize;
+
+	@Param({ "CSV", "BINARY" })
+	public PartitionFormat format;
+
+	// the amount of points requested from getSnapshotUntil
+	@Param({ "100", "10000" })
+	public int amount;
+
+	// 0 disables the partition cache
+	@Param({ "0", "67108864" })
+	public long cacheSize;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+	private PartitionedSink sink;
+	private long end;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(partitionSize, format);
+		end = database.generate(1, depth);
+		provider = database.newProvider();
+		provider.setCacheSize(cacheSize);
+		sink = database.getSink(provider, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		provider.close();
+		database.delete();
+	}
+
+	// the most recent points, the common dashboard query
+	@Benchmark
+	public SinkSnapshot snapshotUntilLatest() {
+		return sink.getSnapshotUntil(amount, end);
+	}
+
+	// points at the start of the history, these are found after going back through all the partitions
+	@Benchmark
+	public SinkSnapshot snapshotUntilOldest() {
+		return sink.getSnapshotUntil(amount, BenchmarkDatabase.START + partitionSize * BenchmarkDatabase.STEP);
+	}
+
+	@Benchmark
+	public SinkSnapshot snapshotBetweenAll() {
+		return sink.getSnapshotBetween(BenchmarkDatabase.START, end);
+	}
+
+	// a range that starts and ends in the middle of a partition
+	@Benchmark
+	public SinkSnapshot snapshotBetweenHalf() {
+		long length = end - BenchmarkDatabase.START;
+		return sink.getSnapshotBetween(BenchmarkDatabase.START + length / 4 + BenchmarkDatabase.STEP * partitionSize / 2, end - length / 4);
+	}
+
+	@Benchmark
+	public void scanAll(final Blackhole blackhole) {
+		sink.scan(BenchmarkDatabase.START, end, new LongPairConsumer() {
+			@Override
+			public void accept(long timestamp, long value) {
+				blackhole.consume(value);
+			}
+		});
+	}
+}
@@ -0,0 +1,105 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.metrics.database.PartitionFormat;
+import be.nabu.libs.metrics.database.PartitionedSinkProvider;
+
+/**
+ * The time it takes to open a database with the given amount of sinks.
+ * Every sink has a few sealed partitions and a partially filled temporary buffer that has to be recovered.
+ * Because the previous invocation closed the database cleanly, the statistics are seeded from the persisted window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class StartupBenchmark {
+
+	@Param({ "100", "1000" })
+	public int sinks;
+
+	@Param({ "1", "4" })
+	public int startupThreads;
+
+	@Param({ "false", "true" })
+	public boolean lazyStatistics;
+
+	private BenchmarkDatabase database;
+	private PartitionedSinkProvider provider;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		database = new BenchmarkDatabase(100, PartitionFormat.BINARY);
+		long end = database.generate(sinks, 3);
+		// leave half a partition in the temporary buffers
+		PartitionedSinkProvider provider = database.newProvider();
+		try {
+			for (int i = 0; i < sinks; i++) {
+				for (int j = 0; j < 50; j++) {
+					database.getSink(provider, i).push(end + j * BenchmarkDatabase.STEP, j);
+				}
+			}
+		}
+		finally {
+			provider.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		database.delete();
+	}
+
+	@Benchmark
+	public PartitionedSinkProvider open() {
+		provider = database.newProvider();
+		provider.setStartupThreads(startupThreads);
+		provider.setLazyStatistics(lazyStatistics);
+		provider.open();
+		return provider;
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		if (provider != null) {
+			provider.close();
+			provider = null;
+		}
+	}
+}
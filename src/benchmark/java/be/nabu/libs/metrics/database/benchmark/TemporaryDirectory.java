@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+
+/**
+ * A minimal directory backed resource container so the benchmarks do not depend on a specific resource implementation.
+ * Because it is locatable, the database uses memory mapping for it like it would for any local directory.
+ */
+public class TemporaryDirectory implements ManageableContainer<Resource>, LocatableResource {
+
+	private File directory;
+	private TemporaryDirectory parent;
+
+	public TemporaryDirectory(File directory, TemporaryDirectory parent) {
+		this.directory = directory;
+		this.parent = parent;
+	}
+
+	public static TemporaryDirectory create(String prefix) throws IOException {
+		return new TemporaryDirectory(Files.createTempDirectory(prefix).toFile(), null);
+	}
+
+	/**
+	 * Returns the child directory with the given name, it is created if necessary
+	 */
+	public TemporaryDirectory getDirectory(String name) throws IOException {
+		return (TemporaryDirectory) create(name, Resource.CONTENT_TYPE_DIRECTORY);
+	}
+
+	@Override
+	public String getName() {
+		return directory.getName();
+	}
+
+	@Override
+	public String getContentType() {
+		return Resource.CONTENT_TYPE_DIRECTORY;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return parent;
+	}
+
+	@Override
+	public URI getUri() {
+		return directory.toURI();
+	}
+
+	public File getFile() {
+		return directory;
+	}
+
+	@Override
+	public Resource getChild(String name) {
+		File file = new File(directory, name);
+		if (file.isDirectory()) {
+			return new TemporaryDirectory(file, this);
+		}
+		return file.exists() ? new TemporaryFile(file, this) : null;
+	}
+
+	@Override
+	public Resource create(String name, String contentType) throws IOException {
+		File file = new File(directory, name);
+		if (Resource.CONTENT_TYPE_DIRECTORY.equals(contentType)) {
+			// another thread may have created it in the meantime
+			if (!file.mkdir() && !file.isDirectory()) {
+				throw new IOException("Could not create directory: " + file);
+			}
+			return new TemporaryDirectory(file, this);
+		}
+		if (!file.createNewFile() && !file.isFile()) {
+			throw new IOException("Could not create file: " + file);
+		}
+		return new TemporaryFile(file, this);
+	}
+
+	@Override
+	public void delete(String name) throws IOException {
+		delete(new File(directory, name));
+	}
+
+	/**
+	 * Removes the directory and everything in it
+	 */
+	public void delete() throws IOException {
+		delete(directory);
+	}
+
+	private static void delete(File file) throws IOException {
+		File [] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not delete: " + file);
+		}
+	}
+
+	@Override
+	public Iterator<Resource> iterator() {
+		List<Resource> children = new ArrayList<Resource>();
+		File [] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				children.add(file.isDirectory() ? new TemporaryDirectory(file, this) : new TemporaryFile(file, this));
+			}
+		}
+		return children.iterator();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+
+import be.nabu.libs.resources.api.AppendableResource;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * A file in a {@link TemporaryDirectory}
+ */
+public class TemporaryFile implements ReadableResource, WritableResource, AppendableResource, FiniteResource, LocatableResource {
+
+	private File file;
+	private TemporaryDirectory parent;
+
+	public TemporaryFile(File file, TemporaryDirectory parent) {
+		this.file = file;
+		this.parent = parent;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/octet-stream";
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return parent;
+	}
+
+	@Override
+	public URI getUri() {
+		return file.toURI();
+	}
+
+	@Override
+	public long getSize() {
+		return file.length();
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+		return IOUtils.wrap(new FileInputStream(file));
+	}
+
+	@Override
+	public WritableContainer<ByteBuffer> getWritable() throws IOException {
+		return IOUtils.wrap(new FileOutputStream(file));
+	}
+
+	@Override
+	public WritableContainer<ByteBuffer> getAppendable() throws IOException {
+		return IOUtils.wrap(new FileOutputStream(file, true));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.text.ParseException;
+
+/**
+ * Mergeable statistics over a range of points.
+ * The timestamp is the start of the bucket the aggregate was computed for, from and until are the timestamps of the first and last point that was actually seen.
+ */
+public class Aggregate {
+
+	private long timestamp, from, until, count, sum, minimum = Long.MAX_VALUE, maximum = Long.MIN_VALUE, last;
+
+	public Aggregate() {
+		// auto construct
+	}
+
+	public Aggregate(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public void push(long timestamp, long value) {
+		if (count == 0 || timestamp < from) {
+			from = timestamp;
+		}
+		if (count == 0 || timestamp >= until) {
+			until = timestamp;
+			last = value;
+		}
+		count++;
+		sum += value;
+		if (value < minimum) {
+			minimum = value;
+		}
+		if (value > maximum) {
+			maximum = value;
+		}
+	}
+
+	public void merge(Aggregate aggregate) {
+		if (aggregate.count == 0) {
+			return;
+		}
+		if (count == 0 || aggregate.from < from) {
+			from = aggregate.from;
+		}
+		if (count == 0 || aggregate.until >= until) {
+			until = aggregate.until;
+			last = aggregate.last;
+		}
+		count += aggregate.count;
+		sum += aggregate.sum;
+		minimum = Math.min(minimum, aggregate.minimum);
+		maximum = Math.max(maximum, aggregate.maximum);
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	public long getUntil() {
+		return until;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMinimum() {
+		return minimum;
+	}
+
+	public long getMaximum() {
+		return maximum;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public double getAverage() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	@Override
+	public String toString() {
+		return timestamp + "," + from + "," + until + "," + count + "," + sum + "," + minimum + "," + maximum + "," + last;
+	}
+
+	public static Aggregate parse(String line) throws ParseException {
+		String [] parts = line.split(",");
+		if (parts.length != 8) {
+			throw new ParseException("Invalid aggregate: " + line, 0);
+		}
+		Aggregate aggregate = new Aggregate(Long.parseLong(parts[0]));
+		aggregate.from = Long.parseLong(parts[1]);
+		aggregate.until = Long.parseLong(parts[2]);
+		aggregate.count = Long.parseLong(parts[3]);
+		aggregate.sum = Long.parseLong(parts[4]);
+		aggregate.minimum = Long.parseLong(parts[5]);
+		aggregate.maximum = Long.parseLong(parts[6]);
+		aggregate.last = Long.parseLong(parts[7]);
+		return aggregate;
+	}
+}
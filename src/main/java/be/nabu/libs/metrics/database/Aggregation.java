@@ -0,0 +1,34 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+/**
+ * How the points of multiple sinks are combined into a single value per bucket
+ */
+public enum Aggregation {
+	// the sum of all the points
+	SUM,
+	// the average of all the points
+	AVERAGE,
+	MINIMUM,
+	MAXIMUM,
+	// the amount of points
+	COUNT,
+	// the sum of the average of each sink, for gauges this is the total over all sinks regardless of how often each one reports
+	TOTAL
+}
@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Parses "timestamp,value" lines straight from the bytes into primitives, nothing is allocated per line.
+ * Use it as a cursor: call next() until it returns false and read the current point in between.
+ */
+public class CsvDecoder {
+
+	private InputStream input;
+	private byte [] buffer;
+	// the position in the buffer where the current line starts
+	private int position, limit, lineStart;
+	// the line we are currently parsing (0-based), used in error messages
+	private int line = -1;
+	private long timestamp, value;
+
+	public CsvDecoder(InputStream input) {
+		this(input, 8192);
+	}
+
+	public CsvDecoder(InputStream input, int bufferSize) {
+		this.input = input;
+		this.buffer = new byte[Math.max(64, bufferSize)];
+	}
+
+	/**
+	 * Parses the next line, returns false if there are no more lines. As before, an empty line ends the input.
+	 */
+	public boolean next() throws IOException, ParseException {
+		// a preallocated file that was not closed properly ends in zeros, see MappedSegment
+		if (!ensure() || buffer[position] == 0 || buffer[position] == '\n' || buffer[position] == '\r') {
+			return false;
+		}
+		line++;
+		lineStart = position;
+		timestamp = readLong();
+		if (!ensure() || buffer[position] != ',') {
+			throw invalid();
+		}
+		position++;
+		value = readLong();
+		// the last line does not need a linefeed
+		if (ensure()) {
+			if (buffer[position] == '\r') {
+				position++;
+				ensure();
+			}
+			if (position < limit) {
+				if (buffer[position] != '\n') {
+					throw invalid();
+				}
+				position++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether all the input has been read, after next() returned false this tells apart the end of the input from an empty line or trailing zeros
+	 */
+	public boolean isExhausted() throws IOException {
+		return !ensure();
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	private long readLong() throws IOException, ParseException {
+		if (!ensure()) {
+			throw invalid();
+		}
+		boolean negative = buffer[position] == '-';
+		if (negative) {
+			position++;
+		}
+		long result = 0;
+		int digits = 0;
+		while (ensure()) {
+			int digit = buffer[position] - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			// accumulate negatively so Long.MIN_VALUE can be parsed as well
+			if (result < Long.MIN_VALUE / 10 || result * 10 < Long.MIN_VALUE + digit) {
+				throw invalid();
+			}
+			result = result * 10 - digit;
+			position++;
+			digits++;
+		}
+		if (digits == 0 || (!negative && result == Long.MIN_VALUE)) {
+			throw invalid();
+		}
+		return negative ? result : -result;
+	}
+
+	// makes sure there is at least one byte available at the position, the line being parsed is kept in the buffer for error reporting
+	private boolean ensure() throws IOException {
+		if (position < limit) {
+			return true;
+		}
+		if (lineStart > 0) {
+			System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+			limit -= lineStart;
+			position -= lineStart;
+			lineStart = 0;
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read = input.read(buffer, limit, buffer.length - limit);
+		if (read > 0) {
+			limit += read;
+		}
+		return position < limit;
+	}
+
+	private ParseException invalid() throws IOException {
+		// only on error do we build a string, read the rest of the line first
+		while (ensure() && buffer[position] != '\n') {
+			position++;
+		}
+		return new ParseException("Invalid line [" + line + "]: " + new String(buffer, lineStart, position - lineStart, Charset.forName("ASCII")).trim(), line);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.metrics.core.api.SinkProvider;
+
+/**
+ * The instruments that measure the costs of the database itself, durations are in ns.
+ * The measurements can be published into any sink provider, including the database itself, so it can chart its own performance.
+ */
+public class DatabaseMetrics {
+
+	// the time it takes to push a point or a batch
+	public static final String PUSH = "push";
+	// the time it takes to write a closed partition
+	public static final String ROLLOVER = "rollover";
+	// the size of a written partition
+	public static final String PARTITION_BYTES = "partition-bytes";
+	// the time it takes to decode a partition, the amount of decodes per query is its count divided by that of the queries
+	public static final String DECODE = "decode";
+	public static final String QUERY = "query";
+	// the time it takes to write pending points to a temporary buffer
+	public static final String WAL_APPEND = "wal-append";
+	// the amount of historic partitions that a query reads (snapshots, scans and the statistics that can not be answered from the summaries)
+	public static final String SNAPSHOT_PARTITIONS = "snapshot-partitions";
+	// the time it takes to open a sink, including the recovery of its temporary buffer
+	public static final String OPEN = "open";
+	// the time it takes to compact a sink
+	public static final String COMPACTION = "compaction";
+	// the time it takes to export a file and its size, the throughput is their ratio
+	public static final String EXPORT = "export";
+	public static final String EXPORT_BYTES = "export-bytes";
+
+	private Map<String, Instrument> instruments = new LinkedHashMap<String, Instrument>();
+	// the snapshots at the time of the last publish
+	private Map<String, Instrument.Snapshot> published = new HashMap<String, Instrument.Snapshot>();
+
+	public DatabaseMetrics() {
+		for (String name : new String[] { PUSH, ROLLOVER, PARTITION_BYTES, DECODE, QUERY, WAL_APPEND, SNAPSHOT_PARTITIONS, OPEN, COMPACTION, EXPORT, EXPORT_BYTES }) {
+			instruments.put(name, new Instrument(name));
+		}
+	}
+
+	public Instrument getInstrument(String name) {
+		return instruments.get(name);
+	}
+
+	public Collection<Instrument> getInstruments() {
+		return Collections.unmodifiableCollection(instruments.values());
+	}
+
+	/**
+	 * Pushes the measurements since the previous publish into the sinks with the given id.
+	 * For every instrument the count is pushed to the category "<name>-count", if there were measurements their mean and 99th percentile are pushed to "<name>-mean" and "<name>-p99".
+	 * Returns the measurements that were published.
+	 */
+	public synchronized List<Instrument.Snapshot> publish(SinkProvider provider, String id, long timestamp) {
+		List<Instrument.Snapshot> snapshots = new ArrayList<Instrument.Snapshot>();
+		for (Instrument instrument : instruments.values()) {
+			Instrument.Snapshot current = instrument.getSnapshot();
+			Instrument.Snapshot previous = published.get(instrument.getName());
+			Instrument.Snapshot interval = previous == null ? current : current.minus(previous);
+			published.put(instrument.getName(), current);
+			snapshots.add(interval);
+			if (provider != null) {
+				provider.getSink(id, instrument.getName() + "-count").push(timestamp, interval.getCount());
+				if (interval.getCount() > 0) {
+					provider.getSink(id, instrument.getName() + "-mean").push(timestamp, Math.round(interval.getMean()));
+					provider.getSink(id, instrument.getName() + "-p99").push(timestamp, interval.getQuantile(0.99));
+				}
+			}
+		}
+		return snapshots;
+	}
+}
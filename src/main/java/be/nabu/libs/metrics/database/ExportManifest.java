@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Describes an export: all the files that make up the database at the time of the export with their size, and how many of them were actually written.
+ * An incremental export only writes the files that are not in the previous manifest with the same size (an export into a container also writes those the container does not have).
+ * Restoring an incremental archive means taking the files listed in its manifest from the archives that wrote them.
+ * The manifest is written last, an export without one is incomplete.
+ */
+public class ExportManifest {
+
+	public static final String NAME = "manifest.cfg";
+
+	private long timestamp, bytes, duration;
+	private int exported;
+	// the relative paths of the files and their size
+	private Map<String, Long> files;
+
+	public ExportManifest(long timestamp, Map<String, Long> files, int exported, long bytes, long duration) {
+		this.timestamp = timestamp;
+		this.files = new TreeMap<String, Long>(files);
+		this.exported = exported;
+		this.bytes = bytes;
+		this.duration = duration;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public Map<String, Long> getFiles() {
+		return Collections.unmodifiableMap(files);
+	}
+
+	// the amount of files that were written by this export
+	public int getExported() {
+		return exported;
+	}
+
+	// the amount of bytes that were written by this export
+	public long getBytes() {
+		return bytes;
+	}
+
+	// how long (in ms) the export took
+	public long getDuration() {
+		return duration;
+	}
+
+	// the bytes written per second
+	public double getThroughput() {
+		return duration == 0 ? bytes * 1000d : bytes * 1000d / duration;
+	}
+
+	public boolean contains(String path, long size) {
+		Long existing = files.get(path);
+		return existing != null && existing == size;
+	}
+
+	public void write(OutputStream output) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("timestamp", Long.toString(timestamp));
+		properties.setProperty("exported", Integer.toString(exported));
+		properties.setProperty("bytes", Long.toString(bytes));
+		properties.setProperty("duration", Long.toString(duration));
+		for (Map.Entry<String, Long> file : files.entrySet()) {
+			properties.setProperty("file." + file.getKey(), Long.toString(file.getValue()));
+		}
+		properties.store(output, "");
+	}
+
+	public static ExportManifest read(InputStream input) throws IOException {
+		Properties properties = new Properties();
+		properties.load(input);
+		Map<String, Long> files = new TreeMap<String, Long>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("file.")) {
+				files.put(key.substring("file.".length()), Long.parseLong(properties.getProperty(key)));
+			}
+		}
+		return new ExportManifest(
+			Long.parseLong(properties.getProperty("timestamp", "0")),
+			files,
+			Integer.parseInt(properties.getProperty("exported", "0")),
+			Long.parseLong(properties.getProperty("bytes", "0")),
+			Long.parseLong(properties.getProperty("duration", "0"))
+		);
+	}
+
+	/**
+	 * Loads the manifest from the given resource, e.g. the manifest.cfg in the root of a previous export
+	 */
+	public static ExportManifest load(Resource resource) throws IOException {
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+		try {
+			return read(IOUtils.toInputStream(readable));
+		}
+		finally {
+			readable.close();
+		}
+	}
+}
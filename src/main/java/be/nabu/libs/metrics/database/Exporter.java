@@ -0,0 +1,379 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Exports the sinks of a provider while it is in use, see PartitionedSinkProvider.export.
+ * First every sink is captured, then the captured files are copied in units of a sink or a day directory so they can be spread over multiple threads.
+ * The export has the same layout as the database: the sinks are in "root", the captured points that are not yet in a partition are in "temporary".
+ */
+class Exporter {
+
+	private PartitionedSinkProvider provider;
+	private Target target;
+	private ExportManifest previous;
+	private Map<String, Long> files = new ConcurrentHashMap<String, Long>();
+	private AtomicInteger exported = new AtomicInteger();
+	private AtomicLong bytes = new AtomicLong();
+
+	Exporter(PartitionedSinkProvider provider, Target target, ExportManifest previous) {
+		this.provider = provider;
+		this.target = target;
+		this.previous = previous;
+	}
+
+	ExportManifest export(int threads) throws IOException {
+		long timestamp = new Date().getTime();
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-database-export");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : null;
+		try {
+			List<Callable<SinkCapture>> captures = new ArrayList<Callable<SinkCapture>>();
+			for (Map.Entry<String, List<String>> entry : provider.getSinks().entrySet()) {
+				for (final String category : entry.getValue()) {
+					final String id = entry.getKey();
+					captures.add(new Callable<SinkCapture>() {
+						@Override
+						public SinkCapture call() throws Exception {
+							return provider.getSink(id, category).capture();
+						}
+					});
+				}
+			}
+			List<Callable<Void>> copies = new ArrayList<Callable<Void>>();
+			for (final SinkCapture capture : run(executor, captures)) {
+				final String path = "root/" + capture.getId() + "/" + capture.getCategory() + "/";
+				copies.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						export("temporary/" + capture.getId() + ":" + capture.getCategory() + ".csv", WriteAheadLog.toCsv(capture.getUnsealed().view()));
+						exportTree(path, capture.getRoot(), true);
+						return null;
+					}
+				});
+				for (final Map.Entry<String, Set<String>> day : capture.getDays().entrySet()) {
+					copies.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							exportDay(path + day.getKey() + "/", (ResourceContainer<?>) ResourceUtils.resolve(capture.getRoot(), day.getKey()), day.getValue());
+							return null;
+						}
+					});
+				}
+			}
+			run(executor, copies);
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		ExportManifest manifest = new ExportManifest(timestamp, files, exported.get(), bytes.get(), new Date().getTime() - timestamp);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manifest.write(output);
+		target.write(ExportManifest.NAME, output.toByteArray(), null);
+		target.close();
+		return manifest;
+	}
+
+	private static <T> List<T> run(ExecutorService executor, List<Callable<T>> tasks) throws IOException {
+		List<T> results = new ArrayList<T>();
+		try {
+			if (executor == null) {
+				for (Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			}
+			else {
+				for (Future<T> future : executor.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		catch (IOException e) {
+			throw e;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	// the files of the sink itself (tags, rollups,...), the partitions are exported per day
+	private void exportTree(String path, ResourceContainer<?> container, boolean root) throws IOException {
+		for (Resource child : container) {
+			if (isDirectory(child)) {
+				if (!root || !child.getName().matches("[0-9]+")) {
+					exportTree(path + child.getName() + "/", (ResourceContainer<?>) child, false);
+				}
+			}
+			else {
+				export(path + child.getName(), child);
+			}
+		}
+	}
+
+	private void exportDay(String path, ResourceContainer<?> container, Set<String> partitions) throws IOException {
+		if (container == null) {
+			return;
+		}
+		for (Resource child : container) {
+			if (isDirectory(child)) {
+				continue;
+			}
+			boolean partition = PartitionFormat.fromName(child.getName()) != null;
+			// partitions that were written after the capture are part of the captured temporary points, unfinished merges are not part of the sink at all
+			if (partition && !partitions.contains(child.getName())) {
+				continue;
+			}
+			export(path + child.getName(), child);
+		}
+	}
+
+	private void export(String path, Resource resource) throws IOException {
+		long size = resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : -1;
+		// tags can change without changing their size
+		if (previous != null && size >= 0 && previous.contains(path, size) && !PartitionedSink.TAG_FILE.equals(resource.getName()) && target.contains(path, size)) {
+			files.put(path, size);
+			return;
+		}
+		long started = System.nanoTime();
+		record(started, target.write(path, resource, files));
+	}
+
+	private void export(String path, byte [] content) throws IOException {
+		long started = System.nanoTime();
+		target.write(path, content, files);
+		record(started, content.length);
+	}
+
+	private void record(long started, long written) {
+		exported.incrementAndGet();
+		bytes.addAndGet(written);
+		if (provider.isInstrumented()) {
+			provider.getMetrics().getInstrument(DatabaseMetrics.EXPORT).record(System.nanoTime() - started);
+			provider.getMetrics().getInstrument(DatabaseMetrics.EXPORT_BYTES).record(written);
+		}
+	}
+
+	private static boolean isDirectory(Resource resource) {
+		return Resource.CONTENT_TYPE_DIRECTORY.equals(resource.getContentType());
+	}
+
+	private static long copy(InputStream input, OutputStream output) throws IOException {
+		byte [] buffer = new byte[8192];
+		long total = 0;
+		int read;
+		while ((read = input.read(buffer)) >= 0) {
+			output.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Where the files of an export are written, the files are registered with their size once they are written
+	 */
+	static abstract class Target {
+
+		abstract long write(String path, Resource resource, Map<String, Long> files) throws IOException;
+
+		// whether a file of the previous export can be left out of this one
+		abstract boolean contains(String path, long size) throws IOException;
+
+		abstract void write(String path, byte [] content, Map<String, Long> files) throws IOException;
+
+		void close() throws IOException {
+			// do nothing
+		}
+	}
+
+	/**
+	 * Writes the export into a container, every file is copied: partitions can be rewritten in place (e.g. when they are sealed again during recovery) so a link would change along with them.
+	 * An incremental export only leaves out the files that the container already has with the same size, exporting into a new container copies the entire database.
+	 */
+	static class ContainerTarget extends Target {
+
+		private ResourceContainer<?> root;
+
+		ContainerTarget(ResourceContainer<?> root) {
+			this.root = root;
+		}
+
+		@Override
+		long write(String path, Resource resource, Map<String, Long> files) throws IOException {
+			ResourceContainer<?> parent = getParent(path);
+			String name = path.substring(path.lastIndexOf('/') + 1);
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				WritableContainer<ByteBuffer> writable = getWritable(parent, name, resource.getContentType());
+				try {
+					OutputStream output = IOUtils.toOutputStream(writable, true);
+					long written = copy(IOUtils.toInputStream(readable), output);
+					output.flush();
+					files.put(path, written);
+					return written;
+				}
+				finally {
+					writable.close();
+				}
+			}
+			finally {
+				readable.close();
+			}
+		}
+
+		@Override
+		void write(String path, byte [] content, Map<String, Long> files) throws IOException {
+			WritableContainer<ByteBuffer> writable = getWritable(getParent(path), path.substring(path.lastIndexOf('/') + 1), "text/plain");
+			try {
+				OutputStream output = IOUtils.toOutputStream(writable, true);
+				output.write(content);
+				output.flush();
+			}
+			finally {
+				writable.close();
+			}
+			if (files != null) {
+				files.put(path, (long) content.length);
+			}
+		}
+
+		@Override
+		boolean contains(String path, long size) throws IOException {
+			Resource resource = ResourceUtils.resolve(root, path);
+			return resource instanceof FiniteResource && ((FiniteResource) resource).getSize() == size;
+		}
+
+		// directories are shared by the threads of the export
+		private synchronized ResourceContainer<?> getParent(String path) throws IOException {
+			int index = path.lastIndexOf('/');
+			return index < 0 ? root : ResourceUtils.mkdirs(root, path.substring(0, index));
+		}
+
+		private static WritableContainer<ByteBuffer> getWritable(ResourceContainer<?> parent, String name, String contentType) throws IOException {
+			Resource target = parent.getChild(name);
+			if (target == null) {
+				target = ((ManageableContainer<?>) parent).create(name, contentType);
+			}
+			return ((WritableResource) target).getWritable();
+		}
+	}
+
+	/**
+	 * Writes the export as a single zip archive, the files are read in parallel but written one at a time
+	 */
+	static class ArchiveTarget extends Target {
+
+		private ZipOutputStream zip;
+
+		ArchiveTarget(OutputStream output) {
+			this.zip = new ZipOutputStream(output);
+		}
+
+		@Override
+		long write(String path, Resource resource, Map<String, Long> files) throws IOException {
+			byte [] content;
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				content = PartitionCodec.readFully(IOUtils.toInputStream(readable));
+			}
+			finally {
+				readable.close();
+			}
+			write(path, content, files);
+			return content.length;
+		}
+
+		@Override
+		void write(String path, byte [] content, Map<String, Long> files) throws IOException {
+			synchronized(zip) {
+				zip.putNextEntry(new ZipEntry(path));
+				zip.write(content);
+				zip.closeEntry();
+			}
+			if (files != null) {
+				files.put(path, (long) content.length);
+			}
+		}
+
+		// an incremental archive only holds the changed files, it is restored on top of the archives of the previous exports
+		@Override
+		boolean contains(String path, long size) {
+			return true;
+		}
+
+		// the stream belongs to the caller, it is only finished
+		@Override
+		void close() throws IOException {
+			zip.finish();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free ring buffer with multiple producers and a single consumer.
+ * Producers claim a slot by incrementing the tail, write the point and then publish the slot by setting its sequence.
+ * The consumer only reads a slot once it has been published, so a slow producer holds back the consumer but never corrupts the data.
+ */
+public class IngestionBuffer {
+
+	private long [] timestamps, values;
+	private AtomicLongArray published;
+	private AtomicLong tail = new AtomicLong();
+	private volatile long head;
+	private int mask;
+
+	public IngestionBuffer(int capacity) {
+		// round up to a power of two so we can mask instead of modulo
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.timestamps = new long[size];
+		this.values = new long[size];
+		this.published = new AtomicLongArray(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Returns false if the buffer is full
+	 */
+	public boolean offer(long timestamp, long value) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head >= timestamps.length) {
+				return false;
+			}
+		}
+		while (!tail.compareAndSet(sequence, sequence + 1));
+		int index = (int) sequence & mask;
+		timestamps[index] = timestamp;
+		values[index] = value;
+		// the sequence is offset by one so a fresh slot (0) is never seen as published
+		published.set(index, sequence + 1);
+		return true;
+	}
+
+	/**
+	 * Moves the published points to the target, this must only be called by one thread at a time
+	 */
+	public int drain(TimeSeries target) {
+		int drained = 0;
+		long head = this.head;
+		while (true) {
+			int index = (int) head & mask;
+			if (published.get(index) != head + 1) {
+				break;
+			}
+			target.add(timestamps[index], values[index]);
+			head++;
+			drained++;
+		}
+		this.head = head;
+		return drained;
+	}
+
+	public int size() {
+		return (int) (tail.get() - head);
+	}
+
+	public int getCapacity() {
+		return timestamps.length;
+	}
+}
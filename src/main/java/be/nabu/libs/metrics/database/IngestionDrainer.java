@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single thread that moves points from the ingestion buffers of the sinks into their partitions.
+ * Sinks with new points are queued once, no matter how many points are pushed before the drainer gets to them.
+ */
+class IngestionDrainer implements Runnable {
+
+	private BlockingQueue<PartitionedSink> queue = new LinkedBlockingQueue<PartitionedSink>();
+	private volatile boolean running = true;
+	private Thread thread;
+	private AtomicLong failures;
+
+	IngestionDrainer(AtomicLong failures) {
+		this.failures = failures;
+		thread = new Thread(this, "metrics-database-ingestion");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void schedule(PartitionedSink sink) {
+		queue.add(sink);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				PartitionedSink sink = queue.poll(1, TimeUnit.SECONDS);
+				if (sink != null) {
+					sink.drain();
+				}
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			// a failing sink should not stop ingestion for the others
+			catch (RuntimeException e) {
+				failures.incrementAndGet();
+			}
+		}
+	}
+
+	void stop() {
+		running = false;
+		thread.interrupt();
+	}
+}
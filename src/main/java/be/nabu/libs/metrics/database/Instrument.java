@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Records measurements (durations in ns, sizes,...) without locking, every field is striped so concurrent threads don't contend.
+ * Values are counted in power of two buckets which is precise enough to follow the percentiles of our own costs.
+ */
+public class Instrument {
+
+	private static final int BUCKETS = 64;
+
+	private String name;
+	private LongAdder count = new LongAdder(), total = new LongAdder();
+	private LongAccumulator maximum = new LongAccumulator(new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+	private LongAdder [] buckets = new LongAdder[BUCKETS];
+
+	public Instrument(String name) {
+		this.name = name;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long value) {
+		value = Math.max(0, value);
+		count.increment();
+		total.add(value);
+		maximum.accumulate(value);
+		// the bucket is the position of the highest bit
+		buckets[value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value)].increment();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	// the largest value ever recorded
+	public long getMaximum() {
+		return maximum.get();
+	}
+
+	/**
+	 * A snapshot of the counters, the fields are read one by one so a snapshot taken while values are recorded can be slightly off
+	 */
+	public Snapshot getSnapshot() {
+		long [] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return new Snapshot(name, count.sum(), total.sum(), counts);
+	}
+
+	public static class Snapshot {
+		private String name;
+		private long count, total;
+		private long [] buckets;
+
+		Snapshot(String name, long count, long total, long [] buckets) {
+			this.name = name;
+			this.count = count;
+			this.total = total;
+			this.buckets = buckets;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		/**
+		 * The upper bound of the bucket that contains the given quantile (between 0 and 1)
+		 */
+		public long getQuantile(double quantile) {
+			long rank = Math.max(1, (long) Math.ceil(quantile * count)), seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+				}
+			}
+			return 0;
+		}
+
+		// the measurements recorded since the given (older) snapshot
+		public Snapshot minus(Snapshot previous) {
+			long [] buckets = new long[this.buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = this.buckets[i] - previous.buckets[i];
+			}
+			return new Snapshot(name, count - previous.count, total - previous.total, buckets);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A local text file that is written through a memory mapped region, the file is grown in preallocated segments so an append is a copy into memory.
+ * The preallocated part of the file is filled with zeros, as the content is text we find the end of the content again by skipping the trailing zeros.
+ * When the segment is closed, the file is truncated to its content so it can be read as a regular file.
+ */
+class MappedSegment {
+
+	private File file;
+	private int segmentSize;
+	private RandomAccessFile random;
+	private MappedByteBuffer buffer;
+	private int position;
+
+	MappedSegment(File file, int segmentSize) {
+		this.file = file;
+		this.segmentSize = segmentSize;
+	}
+
+	private void open() throws IOException {
+		if (random == null) {
+			random = new RandomAccessFile(file, "rw");
+			long size = random.length();
+			if (size > Integer.MAX_VALUE - segmentSize) {
+				random.close();
+				random = null;
+				throw new IOException("The file is too large to map: " + file);
+			}
+			map((int) size);
+			position = (int) size;
+			while (position > 0 && buffer.get(position - 1) == 0) {
+				position--;
+			}
+		}
+	}
+
+	// mapping beyond the end of the file grows it
+	private void map(int minimum) throws IOException {
+		if (buffer == null || buffer.capacity() < minimum) {
+			int capacity = (minimum / segmentSize + 1) * segmentSize;
+			buffer = random.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+	}
+
+	// a view positioned at the given offset, the position of the mapped buffer itself is never moved
+	private ByteBuffer at(int offset) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		return view;
+	}
+
+	synchronized byte [] read() throws IOException {
+		open();
+		byte [] bytes = new byte[position];
+		at(0).get(bytes);
+		return bytes;
+	}
+
+	synchronized void append(byte [] bytes) throws IOException {
+		open();
+		map(position + bytes.length);
+		at(position).put(bytes);
+		position += bytes.length;
+	}
+
+	/**
+	 * Replaces the content, the remainder of the old content is zeroed
+	 */
+	synchronized void write(byte [] bytes) throws IOException {
+		open();
+		map(bytes.length);
+		at(0).put(bytes);
+		for (int i = bytes.length; i < position; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		position = bytes.length;
+	}
+
+	/**
+	 * Writes the mapped content to the file, without this the content only survives a crash of the process, not of the operating system
+	 */
+	synchronized void force() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	synchronized void close() throws IOException {
+		if (random != null) {
+			buffer.force();
+			// the buffer must not be accessed once the file is truncated
+			buffer = null;
+			try {
+				random.setLength(position);
+			}
+			finally {
+				random.close();
+				random = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.Resource;
+
+/**
+ * Reads binary partitions that live on the local filesystem by mapping them into memory, the points are decoded straight from the mapped buffer.
+ * This avoids copying the file through the stream wrappers of the resource, the operating system pages the file in as it is decoded.
+ */
+public class MappedStorage {
+
+	/**
+	 * The local file behind the resource or null if it is not a local file
+	 */
+	public static File getFile(Resource resource) {
+		if (resource instanceof LocatableResource) {
+			URI uri = ((LocatableResource) resource).getUri();
+			if (uri != null && "file".equals(uri.getScheme())) {
+				return new File(uri);
+			}
+		}
+		return null;
+	}
+
+	public static TimeSeries loadSeries(File file) throws IOException, ParseException {
+		RandomAccessFile random = new RandomAccessFile(file, "r");
+		try {
+			return PartitionCodec.decode(map(random.getChannel()));
+		}
+		finally {
+			random.close();
+		}
+	}
+
+	public static boolean scan(File file, long from, long until, LongPairConsumer consumer) throws IOException, ParseException {
+		RandomAccessFile random = new RandomAccessFile(file, "r");
+		try {
+			return PartitionCodec.scan(map(random.getChannel()), from, until, consumer);
+		}
+		finally {
+			random.close();
+		}
+	}
+
+	// the mapping stays valid after the channel is closed, it is released when the buffer is garbage collected
+	private static MappedByteBuffer map(FileChannel channel) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+}
@@ -0,0 +1,48 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.List;
+
+/**
+ * Fired at every publish of the database metrics, it contains the measurements since the previous publish
+ */
+public class MetricsEvent {
+
+	private String id;
+	private long timestamp;
+	private List<Instrument.Snapshot> measurements;
+
+	public MetricsEvent(String id, long timestamp, List<Instrument.Snapshot> measurements) {
+		this.id = id;
+		this.timestamp = timestamp;
+		this.measurements = measurements;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public List<Instrument.Snapshot> getMeasurements() {
+		return measurements;
+	}
+}
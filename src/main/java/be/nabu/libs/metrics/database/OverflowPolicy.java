@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+/**
+ * What happens when a new point arrives for a subscriber whose queue for that sink is full
+ */
+public enum OverflowPolicy {
+	// the new point is dropped
+	DROP_NEWEST,
+	// the oldest queued point is dropped to make room
+	DROP_OLDEST,
+	// the new point replaces the newest queued one (for aggregates: it is merged into it), so the subscriber always sees the latest value
+	COALESCE
+}
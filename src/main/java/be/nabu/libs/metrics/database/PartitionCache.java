@@ -0,0 +1,113 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of decoded partitions that is bounded by the (estimated) amount of bytes the decoded partitions take up.
+ * Sealed partitions are immutable so the cached series must never be modified.
+ */
+public class PartitionCache {
+
+	private long maximumSize, size, hits, misses, evictions;
+	private LinkedHashMap<String, TimeSeries> entries = new LinkedHashMap<String, TimeSeries>(16, 0.75f, true);
+
+	public PartitionCache(long maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	public synchronized TimeSeries get(String key) {
+		TimeSeries series = entries.get(key);
+		if (series == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return series;
+	}
+
+	public synchronized void put(String key, TimeSeries series) {
+		long memorySize = series.getMemorySize();
+		// don't cache anything that would flush the entire cache
+		if (memorySize > maximumSize) {
+			return;
+		}
+		TimeSeries previous = entries.put(key, series);
+		if (previous != null) {
+			size -= previous.getMemorySize();
+		}
+		size += memorySize;
+		Iterator<Map.Entry<String, TimeSeries>> iterator = entries.entrySet().iterator();
+		while (size > maximumSize && iterator.hasNext()) {
+			Map.Entry<String, TimeSeries> eldest = iterator.next();
+			size -= eldest.getValue().getMemorySize();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void remove(String key) {
+		TimeSeries previous = entries.remove(key);
+		if (previous != null) {
+			size -= previous.getMemorySize();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getMaximumSize() {
+		return maximumSize;
+	}
+
+	public synchronized void setMaximumSize(long maximumSize) {
+		this.maximumSize = maximumSize;
+		Iterator<Map.Entry<String, TimeSeries>> iterator = entries.entrySet().iterator();
+		while (size > maximumSize && iterator.hasNext()) {
+			size -= iterator.next().getValue().getMemorySize();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
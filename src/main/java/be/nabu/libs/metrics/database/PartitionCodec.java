@@ -0,0 +1,322 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
+
+/**
+ * Binary partition layout:
+ *
+ * header: magic (4 bytes), version (1 byte), block size (4 bytes), amount of points (4 bytes)
+ * block: amount of points (varint), payload length (varint), first timestamp (8 bytes), last timestamp (8 bytes), payload
+ * payload: per point the zigzag varint of the delta-of-delta of the timestamp (omitted for the first point) and the zigzag varint of the value delta
+ *
+ * The block header allows a reader to skip blocks that fall outside of a requested range without decoding them.
+ */
+public class PartitionCodec {
+
+	static final int MAGIC = 0x4e4d4442;
+	static final byte VERSION = 1;
+
+	public static final int BLOCK_SIZE = 1024;
+
+	public static byte [] encode(TimeSeries series) {
+		return encode(series, 0, series.size());
+	}
+
+	public static byte [] encode(TimeSeries series, int offset, int length) {
+		Output output = new Output(32 + length * 4);
+		output.writeInt(MAGIC);
+		output.write(VERSION);
+		output.writeInt(BLOCK_SIZE);
+		output.writeInt(length);
+		Output payload = new Output(BLOCK_SIZE * 4);
+		for (int start = offset; start < offset + length; start += BLOCK_SIZE) {
+			int end = Math.min(start + BLOCK_SIZE, offset + length);
+			payload.reset();
+			long previousTimestamp = series.getTimestamp(start), previousDelta = 0, previousValue = 0;
+			for (int i = start; i < end; i++) {
+				if (i > start) {
+					long delta = series.getTimestamp(i) - previousTimestamp;
+					payload.writeVarLong(zigzag(delta - previousDelta));
+					previousDelta = delta;
+					previousTimestamp = series.getTimestamp(i);
+				}
+				payload.writeVarLong(zigzag(series.getValue(i) - previousValue));
+				previousValue = series.getValue(i);
+			}
+			output.writeVarLong(end - start);
+			output.writeVarLong(payload.size());
+			output.writeLong(series.getTimestamp(start));
+			output.writeLong(series.getTimestamp(end - 1));
+			output.write(payload);
+		}
+		return output.toByteArray();
+	}
+
+	public static TimeSeries decode(InputStream input) throws IOException, ParseException {
+		Input bytes = new Input(readFully(input));
+		return decode(bytes);
+	}
+
+	public static TimeSeries decode(byte [] bytes, int length) throws ParseException {
+		return decode(new Input(bytes, length));
+	}
+
+	/**
+	 * Decodes the remaining bytes of the buffer, this allows decoding straight from a mapped file
+	 */
+	public static TimeSeries decode(ByteBuffer buffer) throws ParseException {
+		return decode(new Input(buffer));
+	}
+
+	private static TimeSeries decode(Input input) throws ParseException {
+		if (input.readInt() != MAGIC) {
+			throw new ParseException("Invalid partition header", 0);
+		}
+		byte version = input.read();
+		if (version != VERSION) {
+			throw new ParseException("Unsupported partition version: " + version, 4);
+		}
+		// the block size is informative for readers, the block headers are authoritative
+		input.readInt();
+		int amount = input.readInt();
+		TimeSeries series = new TimeSeries(amount);
+		while (series.size() < amount) {
+			int count = (int) input.readVarLong();
+			// payload length, only needed when skipping
+			input.readVarLong();
+			long timestamp = input.readLong();
+			// last timestamp, only needed when skipping
+			input.readLong();
+			long delta = 0, value = 0;
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					delta += unzigzag(input.readVarLong());
+					timestamp += delta;
+				}
+				value += unzigzag(input.readVarLong());
+				series.add(timestamp, value);
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Passes the points between from and until (inclusive) to the consumer without building a series, blocks that fall outside of the range are skipped without decoding them.
+	 * Returns false if the partition contains points after until, meaning later partitions do not need to be read.
+	 */
+	public static boolean scan(byte [] bytes, int length, long from, long until, LongPairConsumer consumer) throws ParseException {
+		return scan(new Input(bytes, length), from, until, consumer);
+	}
+
+	public static boolean scan(ByteBuffer buffer, long from, long until, LongPairConsumer consumer) throws ParseException {
+		return scan(new Input(buffer), from, until, consumer);
+	}
+
+	private static boolean scan(Input input, long from, long until, LongPairConsumer consumer) throws ParseException {
+		if (input.readInt() != MAGIC) {
+			throw new ParseException("Invalid partition header", 0);
+		}
+		byte version = input.read();
+		if (version != VERSION) {
+			throw new ParseException("Unsupported partition version: " + version, 4);
+		}
+		input.readInt();
+		int amount = input.readInt();
+		int read = 0;
+		while (read < amount) {
+			int count = (int) input.readVarLong();
+			int payloadLength = (int) input.readVarLong();
+			long timestamp = input.readLong();
+			long last = input.readLong();
+			read += count;
+			if (timestamp > until) {
+				return false;
+			}
+			else if (last < from) {
+				input.skip(payloadLength);
+				continue;
+			}
+			long delta = 0, value = 0;
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					delta += unzigzag(input.readVarLong());
+					timestamp += delta;
+				}
+				value += unzigzag(input.readVarLong());
+				if (timestamp > until) {
+					return false;
+				}
+				else if (timestamp >= from) {
+					consumer.accept(timestamp, value);
+				}
+			}
+		}
+		return true;
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static byte [] readFully(InputStream input) throws IOException {
+		byte [] buffer = new byte[8192];
+		int length = 0, read;
+		while ((read = input.read(buffer, length, buffer.length - length)) >= 0) {
+			length += read;
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+		}
+		return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+	}
+
+	static class Output {
+		private byte [] bytes;
+		private int position;
+
+		Output(int capacity) {
+			this.bytes = new byte[Math.max(16, capacity)];
+		}
+
+		private void ensure(int amount) {
+			if (position + amount > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + amount));
+			}
+		}
+
+		void write(byte value) {
+			ensure(1);
+			bytes[position++] = value;
+		}
+
+		void write(Output output) {
+			ensure(output.position);
+			System.arraycopy(output.bytes, 0, bytes, position, output.position);
+			position += output.position;
+		}
+
+		void writeInt(int value) {
+			ensure(4);
+			for (int i = 3; i >= 0; i--) {
+				bytes[position++] = (byte) (value >>> (i * 8));
+			}
+		}
+
+		void writeLong(long value) {
+			ensure(8);
+			for (int i = 7; i >= 0; i--) {
+				bytes[position++] = (byte) (value >>> (i * 8));
+			}
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[position++] = (byte) value;
+		}
+
+		int size() {
+			return position;
+		}
+
+		void reset() {
+			position = 0;
+		}
+
+		byte [] toByteArray() {
+			return Arrays.copyOf(bytes, position);
+		}
+	}
+
+	static class Input {
+		private ByteBuffer bytes;
+		private int position, length;
+
+		Input(byte [] bytes) {
+			this(bytes, bytes.length);
+		}
+
+		Input(byte [] bytes, int length) {
+			this(ByteBuffer.wrap(bytes, 0, length));
+		}
+
+		// reads with absolute offsets so the position of the buffer itself is left alone
+		Input(ByteBuffer bytes) {
+			this.bytes = bytes;
+			this.position = bytes.position();
+			this.length = bytes.limit();
+		}
+
+		byte read() throws ParseException {
+			if (position >= length) {
+				throw new ParseException("Unexpected end of partition", position);
+			}
+			return bytes.get(position++);
+		}
+
+		void skip(int amount) throws ParseException {
+			if (amount < 0 || position + amount > length) {
+				throw new ParseException("Unexpected end of partition", position);
+			}
+			position += amount;
+		}
+
+		int readInt() throws ParseException {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (read() & 0xFF);
+			}
+			return value;
+		}
+
+		long readLong() throws ParseException {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (read() & 0xFF);
+			}
+			return value;
+		}
+
+		long readVarLong() throws ParseException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte current = read();
+				value |= (long) (current & 0x7F) << shift;
+				if ((current & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new ParseException("Invalid varint", position);
+		}
+	}
+}
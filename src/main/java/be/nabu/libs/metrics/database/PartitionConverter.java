@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.metrics.core.api.SinkSnapshot;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+
+/**
+ * Rewrites existing partitions into another format. This can be run against a single sink root or the root of the provider.
+ * The new partition is written before the original is deleted, if both exist for the same timestamp the sink will prefer the binary one.
+ * This is meant for a root that is not in use, the partitions of a sink that is open should be converted through the sink (see PartitionedSink.convert).
+ */
+public class PartitionConverter {
+
+	public static int convert(ResourceContainer<?> root, PartitionFormat target) throws IOException, ParseException {
+		return convert(root, target, new ArrayList<Resource>());
+	}
+
+	// the original partitions that were converted (and removed) are added to the list
+	static int convert(ResourceContainer<?> root, PartitionFormat target, List<Resource> originals) throws IOException, ParseException {
+		int converted = 0;
+		// copy the children first, we will be modifying the container
+		List<Resource> children = new ArrayList<Resource>();
+		for (Resource child : root) {
+			children.add(child);
+		}
+		for (Resource child : children) {
+			if (Resource.CONTENT_TYPE_DIRECTORY.equals(child.getContentType())) {
+				converted += convert((ResourceContainer<?>) child, target, originals);
+			}
+			else {
+				PartitionFormat format = PartitionFormat.fromName(child.getName());
+				String name = child.getName();
+				if (format != null && format != target && isPartition(name, format)) {
+					String targetName = name.substring(0, name.length() - format.getExtension().length()) + target.getExtension();
+					Resource resource = root.getChild(targetName);
+					if (resource == null) {
+						resource = ((ManageableContainer<?>) root).create(targetName, target.getContentType());
+					}
+					SinkSnapshot snapshot = ResourceManager.load(child);
+					ResourceManager.save(resource, snapshot, target);
+					((ManageableContainer<?>) root).delete(name);
+					originals.add(child);
+					converted++;
+				}
+			}
+		}
+		return converted;
+	}
+
+	private static boolean isPartition(String name, PartitionFormat format) {
+		String timestamp = name.substring(0, name.length() - format.getExtension().length());
+		// merged partitions are named after their first and last timestamp
+		if (format.isMerged(name)) {
+			int index = timestamp.indexOf('-', 1);
+			return isNumber(timestamp.substring(0, index)) && isNumber(timestamp.substring(index + 1));
+		}
+		return isNumber(timestamp);
+	}
+
+	private static boolean isNumber(String timestamp) {
+		if (timestamp.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < timestamp.length(); i++) {
+			if (!Character.isDigit(timestamp.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
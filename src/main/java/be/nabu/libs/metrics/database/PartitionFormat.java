@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+public enum PartitionFormat {
+	// gzipped "timestamp,value" lines
+	CSV(".csv.gz", "text/csv"),
+	// delta-of-delta encoded blocks, see PartitionCodec
+	BINARY(".bin", "application/octet-stream");
+
+	private String extension, contentType;
+
+	private PartitionFormat(String extension, String contentType) {
+		this.extension = extension;
+		this.contentType = contentType;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * The first timestamp in the partition, partitions are named after their first timestamp.
+	 * Partitions created by compaction are named "<first>-<last>".
+	 */
+	public long getTimestamp(String name) {
+		String range = name.substring(0, name.length() - extension.length());
+		int index = range.indexOf('-', 1);
+		return Long.parseLong(index < 0 ? range : range.substring(0, index));
+	}
+
+	// whether the partition was created by merging others
+	public boolean isMerged(String name) {
+		return name.indexOf('-', 1) > 0;
+	}
+
+	// the last timestamp in a merged partition
+	public long getLastTimestamp(String name) {
+		String range = name.substring(0, name.length() - extension.length());
+		return Long.parseLong(range.substring(range.indexOf('-', 1) + 1));
+	}
+
+	public static PartitionFormat fromName(String name) {
+		for (PartitionFormat format : values()) {
+			if (name.endsWith(format.getExtension())) {
+				return format;
+			}
+		}
+		return null;
+	}
+}
@@ -17,6 +17,7 @@
 
 package be.nabu.libs.metrics.database;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -25,23 +26,46 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
-import be.nabu.libs.metrics.core.SinkSnapshotImpl;
-import be.nabu.libs.metrics.core.SinkValueComparator;
 import be.nabu.libs.metrics.core.SinkValueImpl;
 import be.nabu.libs.metrics.core.api.HistorySink;
 import be.nabu.libs.metrics.core.api.SinkSnapshot;
 import be.nabu.libs.metrics.core.api.SinkValue;
 import be.nabu.libs.metrics.core.api.SinkStatistics;
-import be.nabu.libs.metrics.core.api.StatisticsContainer;
 import be.nabu.libs.metrics.core.api.TaggableSink;
 import be.nabu.libs.metrics.core.sinks.StatisticsSink;
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
+import be.nabu.libs.metrics.database.api.WindowStatistics;
+import be.nabu.libs.metrics.database.api.WindowedStatisticsContainer;
 import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.FiniteResource;
 import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.WritableResource;
@@ -52,87 +76,262 @@ import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.api.WritableContainer;
 
-public class PartitionedSink implements HistorySink, StatisticsContainer, TaggableSink {
+public class PartitionedSink implements HistorySink, WindowedStatisticsContainer, TaggableSink {
 
 	private static final int WINDOW = 100;
+	// the directory in the root of the sink that contains the rollups
+	private static final String ROLLUP = "rollup";
+	// the last values at the time the sink was closed
+	private static final String WINDOW_FILE = "window.csv";
+	// the tags of the sink
+	static final String TAG_FILE = "meta.cfg";
 	
 	private ResourceContainer<?> root;
 	private long partitionInterval, partitionSize;
 	private String category;
 	private String id;
-	private SinkSnapshot current;
-	private Resource temporary;
-	private StatisticsSink statistics;
-	private Properties properties;
+	private volatile TimeSeries current;
+	private WriteAheadLog log;
+	private IngestionBuffer buffer;
+	private AtomicBoolean drainScheduled = new AtomicBoolean();
+	private Object drainLock = new Object();
+	// the pushes that are putting a point in the buffer, the close waits for them so no point ends up in the buffer once we are closed
+	private AtomicInteger buffering = new AtomicInteger();
+	private AtomicLong rejected = new AtomicLong(), failed = new AtomicLong();
+	// closed partitions that are being written in the background
+	private List<TimeSeries> sealing = new CopyOnWriteArrayList<TimeSeries>();
+	// the partitions that have been written but are waiting for an older one to be written as well
+	private Set<TimeSeries> sealed = Collections.newSetFromMap(new IdentityHashMap<TimeSeries, Boolean>());
+	// the partitions that could not be written, they are handed to the executor again on the next rollover or flush
+	private Set<TimeSeries> retries = Collections.newSetFromMap(new IdentityHashMap<TimeSeries, Boolean>());
+	// the amount of partitions handed to the executor that are not written yet, guarded by the sink itself
+	private int persisting;
+	// once closed, partitions are written by the thread that closes them
+	private volatile boolean closed;
+	private ReorderBuffer reorder;
+	private long reorderWindow;
+	private boolean lateDataAllowed;
+	// the timestamp of the last point added to a partition and the highest timestamp we have seen
+	private long lastTimestamp = Long.MIN_VALUE, maxTimestamp = Long.MIN_VALUE;
+	private AtomicLong late = new AtomicLong();
+	// readers of the historic partitions hold the read lock, the compaction needs the write lock to replace partitions
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile ConcurrentNavigableMap<Long, Resource> index;
+	private Object indexLock = new Object();
+	// a decoded partition is only cached if it has no late points, the check and the put must not interleave with adding a late point
+	private Object deltaLock = new Object();
+	// the resolutions of the rollups, from fine to coarse
+	private long [] rollupResolutions;
+	private volatile StatisticsSink statistics;
+	private volatile RollingWindow [] windows;
+	// the points that were added while the statistics are being loaded, guarded by the sink itself
+	private TimeSeries seeding;
+	// the subscriptions that get the points added to this sink
+	private List<Subscription.Feed> feeds = new CopyOnWriteArrayList<Subscription.Feed>();
+	private volatile ConcurrentMap<String, String> tags;
+	// set when the tags have changed since they were last written, the write is done after the flush delay of the provider
+	private AtomicBoolean tagsDirty = new AtomicBoolean();
+	private Object tagsLock = new Object();
+	private PartitionedSinkProvider provider;
 	private static ThreadLocal<SimpleDateFormat> formatter = new ThreadLocal<SimpleDateFormat>();
 
 	PartitionedSink(PartitionedSinkProvider provider, String id, String category, ResourceContainer<?> root, long partitionInterval, long partitionSize) throws IOException, ParseException {
+		this.provider = provider;
 		this.id = id;
 		this.category = category;
 		this.root = root;
 		this.partitionInterval = partitionInterval;
 		this.partitionSize = partitionSize;
 		this.statistics = new StatisticsSink(WINDOW);
+		this.windows = newWindows();
+		this.current = new TimeSeries();
+		this.reorderWindow = provider.getPartitionIntervalProvider().getReorderWindow(id, category);
+		this.lateDataAllowed = provider.getPartitionIntervalProvider().isLateDataAllowed(id, category);
+		if (reorderWindow > 0) {
+			this.reorder = new ReorderBuffer();
+		}
+		long [] rollupResolutions = provider.getPartitionIntervalProvider().getRollupResolutions(id, category);
+		this.rollupResolutions = rollupResolutions == null ? new long[0] : rollupResolutions.clone();
+		Arrays.sort(this.rollupResolutions);
+		if (provider.getIngestionBufferSize() > 0) {
+			this.buffer = new IngestionBuffer(provider.getIngestionBufferSize());
+		}
 		// if we have a temporary buffer, load from there
 		if (provider.getTemporary() != null) {
-			this.temporary = provider.getTemporary().getChild(id + ":" + category + ".csv");
-			if (this.temporary == null) {
-				this.temporary = ((ManageableContainer<?>) provider.getTemporary()).create(id + ":" + category + ".csv", "text/csv");
+			Resource temporary = provider.getTemporary().getChild(id + ":" + category + ".csv");
+			boolean exists = temporary != null;
+			if (!exists) {
+				temporary = ((ManageableContainer<?>) provider.getTemporary()).create(id + ":" + category + ".csv", "text/csv");
 			}
-			else {
-				this.current = ResourceManager.load(this.temporary, false);
+			this.log = new WriteAheadLog(temporary, provider.getWalFlushSize(), provider.getExecutor(), provider.isMemoryMapped() ? provider.getMappedSegmentSize() : 0);
+			if (provider.isInstrumented()) {
+				log.setInstrument(provider.getMetrics().getInstrument(DatabaseMetrics.WAL_APPEND));
+			}
+			if (exists) {
+				recover();
+			}
+		}
+		// load the last values into the statistics, this can be done in the background as pushes are merged in afterwards
+		// the recovered points were never added to the statistics so they are merged in as well
+		this.seeding = new TimeSeries();
+		for (int i = 0; i < current.size(); i++) {
+			seeding.add(current.getTimestamp(i), current.getValue(i));
+		}
+		Executor startupExecutor = provider.getStartupExecutor();
+		if (startupExecutor == null) {
+			seedStatistics();
+		}
+		else {
+			startupExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						seedStatistics();
+					}
+					// the statistics keep the points that were pushed since the sink was opened
+					catch (RuntimeException e) {
+						provider.getSeedFailures().incrementAndGet();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Fills the statistics with the last values, preferably from the window that was saved when the sink was closed so we don't have to scan the history.
+	 * Points that are added while the history is being read are kept aside and added afterwards, even if they have been written to disk in the meantime.
+	 */
+	void seedStatistics() {
+		try {
+			TimeSeries window = loadWindow();
+			List<SinkValue> values = window == null ? getSnapshotUntil(WINDOW, new Date().getTime()).getValues() : window.view();
+			long last = values.isEmpty() ? Long.MIN_VALUE : values.get(values.size() - 1).getTimestamp();
+			// the rolling windows are filled from the history up until the same point
+			final RollingWindow [] windows = newWindows();
+			if (windows.length > 0 && !values.isEmpty()) {
+				scan(last - windows[windows.length - 1].getWindow(), last, new LongPairConsumer() {
+					@Override
+					public void accept(long timestamp, long value) {
+						for (RollingWindow window : windows) {
+							window.push(timestamp, value);
+						}
+					}
+				});
+			}
+			synchronized(this) {
+				StatisticsSink statistics = new StatisticsSink(WINDOW);
+				for (SinkValue value : values) {
+					statistics.push(value.getTimestamp(), value.getValue());
+				}
+				TimeSeries.View added = seeding.view();
+				for (int i = added.upperBound(last); i < added.size(); i++) {
+					statistics.push(added.getTimestamp(i), added.getValue(i));
+					for (RollingWindow rolling : windows) {
+						rolling.push(added.getTimestamp(i), added.getValue(i));
+					}
+				}
+				this.statistics = statistics;
+				this.windows = windows;
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			synchronized(this) {
+				seeding = null;
+			}
+		}
+	}
+	
+	private RollingWindow [] newWindows() {
+		long [] lengths = provider.getPartitionIntervalProvider().getStatisticsWindows(id, category);
+		List<RollingWindow> windows = new ArrayList<RollingWindow>();
+		if (lengths != null) {
+			lengths = lengths.clone();
+			Arrays.sort(lengths);
+			for (long length : lengths) {
+				if (length > 0) {
+					windows.add(new RollingWindow(length));
+				}
 			}
 		}
-		if (this.current == null) {
-			this.current = new SinkSnapshotImpl();
+		return windows.toArray(new RollingWindow[windows.size()]);
+	}
+	
+	// the saved window is removed once loaded, if we are not closed properly the next start falls back to the history
+	private TimeSeries loadWindow() throws IOException, ParseException {
+		Resource child = root.getChild(WINDOW_FILE);
+		if (child == null) {
+			return null;
 		}
-		// load the last values into the statistics
+		TimeSeries window = ResourceManager.loadSeries(child, false);
+		((ManageableContainer<?>) root).delete(WINDOW_FILE);
+		return window;
+	}
+	
+	private void saveWindow() throws IOException {
 		SinkSnapshot snapshot = getSnapshotUntil(WINDOW, new Date().getTime());
-		for (SinkValue value : snapshot.getValues()) {
-			statistics.push(value.getTimestamp(), value.getValue());
+		Resource child = root.getChild(WINDOW_FILE);
+		if (child == null) {
+			child = ((ManageableContainer<?>) root).create(WINDOW_FILE, "text/csv");
 		}
+		ResourceManager.save(child, snapshot, false);
 	}
 	
 	@Override
 	public String getTag(String key) {
-		return getProperties().getProperty(key);
+		return getTagMap().get(key);
 	}
 	
+	/**
+	 * Changes a tag (or removes it if the value is null), the tags are written to disk after the tag flush delay of the provider so a burst of changes results in a single write
+	 */
 	@Override
 	public void setTag(String key, String value) {
-		if (value == null) {
-			getProperties().remove(key);
+		ConcurrentMap<String, String> tags = getTagMap();
+		// keep the index of the provider in the same order as the changes
+		synchronized(tags) {
+			String previous = value == null ? tags.remove(key) : tags.put(key, value);
+			if (previous == null ? value == null : previous.equals(value)) {
+				return;
+			}
+			provider.updateTagIndex(id, category, key, previous, value);
 		}
-		else {
-			getProperties().setProperty(key, value);
+		long delay = provider.getTagFlushDelay();
+		if (delay <= 0) {
+			tagsDirty.set(true);
+			saveTags();
+		}
+		else if (tagsDirty.compareAndSet(false, true)) {
+			provider.getTagExecutor().schedule(new Runnable() {
+				@Override
+				public void run() {
+					saveTags();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
 		}
-		saveProperties();
 	}
 	
 	@Override
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public Collection<String> getTags() {
-		Set keySet = getProperties().keySet();
-		return keySet;
+		return Collections.unmodifiableSet(getTagMap().keySet());
 	}
 	
-	private Properties getProperties() {
-		if (properties == null) {
+	// the tags if they have been loaded, null otherwise
+	Map<String, String> getLoadedTags() {
+		return tags;
+	}
+	
+	private ConcurrentMap<String, String> getTagMap() {
+		if (tags == null) {
 			try {
-				synchronized(this) {
-					if (properties == null) {
-						Properties properties = new Properties();
-						Resource child = root.getChild("meta.cfg");
-						if (child instanceof ReadableResource) {
-							ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable();
-							try {
-								properties.load(IOUtils.toInputStream(readable));
-							}
-							finally {
-								readable.close();
-							}
-						}
-						this.properties = properties;
+				synchronized(tagsLock) {
+					if (tags == null) {
+						tags = new ConcurrentHashMap<String, String>(loadTags(root));
 					}
 				}
 			}
@@ -140,241 +339,1929 @@ public class PartitionedSink implements HistorySink, StatisticsContainer, Taggab
 				throw new RuntimeException(e);
 			}
 		}
-		return properties;
+		return tags;
 	}
 	
-	private void saveProperties() {
-		try {
-			Properties properties = getProperties();
-			Resource child = root.getChild("meta.cfg");
-			if (child == null) {
-				child = ((ManageableContainer<?>) root).create("meta.cfg", "text/plain");
-			}
-			WritableContainer<ByteBuffer> writable = ((WritableResource) child).getWritable();
+	static Map<String, String> loadTags(ResourceContainer<?> root) throws IOException {
+		Map<String, String> tags = new HashMap<String, String>();
+		Resource child = root.getChild(TAG_FILE);
+		if (child instanceof ReadableResource) {
+			Properties properties = new Properties();
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable();
 			try {
-				properties.store(IOUtils.toOutputStream(writable, true), "");
+				properties.load(IOUtils.toInputStream(readable));
 			}
 			finally {
-				writable.close();
+				readable.close();
+			}
+			for (String key : properties.stringPropertyNames()) {
+				tags.put(key, properties.getProperty(key));
 			}
 		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+		return tags;
+	}
+	
+	// writes the tags if they have changed since the last write
+	private void saveTags() {
+		synchronized(tagsLock) {
+			// reset before writing, a change from now on is written again
+			if (!tagsDirty.compareAndSet(true, false)) {
+				return;
+			}
+			try {
+				Properties properties = new Properties();
+				properties.putAll(tags);
+				Resource child = root.getChild(TAG_FILE);
+				if (child == null) {
+					child = ((ManageableContainer<?>) root).create(TAG_FILE, "text/plain");
+				}
+				WritableContainer<ByteBuffer> writable = ((WritableResource) child).getWritable();
+				try {
+					properties.store(IOUtils.toOutputStream(writable, true), "");
+				}
+				finally {
+					writable.close();
+				}
+			}
+			catch (IOException e) {
+				tagsDirty.set(true);
+				throw new RuntimeException(e);
+			}
 		}
 	}
 	
 	@Override
-	public synchronized void push(long timestamp, long value) {
-		try {
-			List<SinkValue> values = current.getValues();
-			// the value is _before_ this partition, we currently can not handle historical data being pushed
-			if (!values.isEmpty() && timestamp < values.get(0).getTimestamp()) {
-				throw new IllegalArgumentException("Can not push historical data that predates the partition for '" + id + "' category '" + category + "': " + timestamp + " < " + values.get(0).getTimestamp());
-			}
-			// the value is after the start of the partition but before the end, we still do not support this because we want to go for "append" instead of reordering
-			else if (!values.isEmpty() && timestamp < values.get(values.size() - 1).getTimestamp()) {
-				throw new IllegalArgumentException("Can not push historical data that is out of order within the current partition for '" + id + "' category '" + category + "': " + timestamp + " < " + values.get(values.size() - 1).getTimestamp());
-			}
-			// the value falls outside of this partition, create a new one
-			else if ((partitionSize > 0 && values.size() >= partitionSize) || (!values.isEmpty() && timestamp > values.get(0).getTimestamp() + partitionInterval)) {
-				String path = getFormatter().format(new Date(values.get(0).getTimestamp()));
-				ResourceContainer<?> directory = ResourceUtils.mkdirs(root, path);
-				Resource create = ((ManageableContainer<?>) directory).create(values.get(0).getTimestamp() + ".csv.gz", "text/csv");
-				ResourceManager.save(create, current, true);
-				// reset current
-				current = new SinkSnapshotImpl();
-				// reset temporary
-				ResourceManager.save(temporary, current, false);
+	public void push(long timestamp, long value) {
+		long started = measure();
+		if (buffer == null) {
+			boolean added = false;
+			synchronized(this) {
+				if (!closed) {
+					add(timestamp, value);
+					added = true;
+				}
 			}
-			else {
-				final SinkValue sinkValue = new SinkValueImpl(timestamp, value);
-				values.add(sinkValue);
-				ResourceManager.append(temporary, new SinkSnapshot() {
-					@Override
-					public List<SinkValue> getValues() {
-						return Arrays.asList(sinkValue);
+			if (!added) {
+				getSuccessor().push(timestamp, value);
+			}
+		}
+		else {
+			boolean buffered = false;
+			buffering.incrementAndGet();
+			try {
+				if (!closed) {
+					// the buffer is full, wait for the drainer to make room
+					int attempts = 0;
+					while (!buffer.offer(timestamp, value)) {
+						backoff(attempts++);
 					}
-				}, false);
+					buffered = true;
+				}
+			}
+			finally {
+				buffering.decrementAndGet();
+			}
+			if (!buffered) {
+				getSuccessor().push(timestamp, value);
+			}
+			else if (drainScheduled.compareAndSet(false, true)) {
+				provider.getDrainer().schedule(this);
 			}
-			statistics.push(timestamp, value);
 		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+		record(DatabaseMetrics.PUSH, started);
+	}
+	
+	// the first waits are short as the drainer usually catches up quickly, after that we park for longer (up to a millisecond) so a saturated buffer does not keep a core busy
+	private static void backoff(int attempts) {
+		if (attempts < 16) {
+			Thread.yield();
 		}
-		catch (ParseException e) {
-			throw new RuntimeException(e);
+		else {
+			LockSupport.parkNanos(Math.min(1000000L, 1000L << Math.min(attempts - 16, 10)));
 		}
 	}
-
-	@Override
-	public SinkSnapshot getSnapshotUntil(int amount, long until) {
-		final List<SinkValue> values = new ArrayList<SinkValue>();
-		List<SinkValue> currentValues = current.getValues();
-		
-		if (!currentValues.isEmpty()) {
-			for (SinkValue currentValue : currentValues) {
-				// we have enough values
-				if (values.size() >= amount) {
-					break;
-				}
-				else if (currentValue.getTimestamp() <= until) {
-					values.add(currentValue);
-				}
-				else {
-					break;
+	
+	// the start of a measurement, 0 if the database does not measure itself
+	private long measure() {
+		return provider.isInstrumented() ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * A sink that was closed (e.g. because it was evicted) while it was still in use hands the points it gets to the sink that replaces it.
+	 * The provider only opens that one once we are fully closed.
+	 */
+	private PartitionedSink getSuccessor() {
+		if (provider.isClosed()) {
+			throw new IllegalStateException("The database is closed, can not push to '" + id + "' category '" + category + "'");
+		}
+		PartitionedSink successor = provider.getSink(id, category);
+		if (successor == this) {
+			throw new IllegalStateException("The sink for '" + id + "' category '" + category + "' is closed");
+		}
+		return successor;
+	}
+	
+	private void record(String instrument, long started) {
+		if (started != 0) {
+			provider.getMetrics().getInstrument(instrument).record(System.nanoTime() - started);
+		}
+	}
+	
+	// the amount of historic partitions a query had to read, whether they were decoded, scanned or cached
+	private void recordPartitions(long started, int partitions) {
+		if (started != 0) {
+			provider.getMetrics().getInstrument(DatabaseMetrics.SNAPSHOT_PARTITIONS).record(partitions);
+		}
+	}
+	
+	/**
+	 * Moves the points from the ingestion buffer into the partition, points that arrive too late to be added in order are rejected.
+	 * The batch is already taken from the buffer, so a point that fails is counted and the rest of the batch is still added.
+	 */
+	void drain() {
+		synchronized(drainLock) {
+			// reset before draining, anything pushed from now on will schedule us again
+			drainScheduled.set(false);
+			TimeSeries batch = new TimeSeries(Math.max(16, buffer.size()));
+			buffer.drain(batch);
+			// producers race to claim slots so the batch is nearly but not necessarily sorted
+			batch.sort();
+			synchronized(this) {
+				for (int i = 0; i < batch.size(); i++) {
+					try {
+						add(batch.getTimestamp(i), batch.getValue(i));
+					}
+					catch (IllegalArgumentException e) {
+						rejected.incrementAndGet();
+					}
+					catch (RuntimeException e) {
+						failed.incrementAndGet();
+						provider.getIngestionFailures().incrementAndGet();
+					}
 				}
 			}
 		}
-		// if we don't have enough values yet, look through the history files
-		if (values.size() < amount) {
-			amount -= currentValues.size();
-			Calendar calendar = Calendar.getInstance();
-			Date currentDate = new Date();
-			calendar.setTime(currentDate);
-			try {
-				int notFound = 0;
-				getValues : while(values.size() < amount) {
-					String path = getFormatter().format(calendar.getTime());
-					ResourceContainer<?> fromFolder = (ResourceContainer<?>) ResourceUtils.resolve(root, path);
-					if (fromFolder != null) {
-						List<Resource> resources = getResources(0, currentDate.getTime(), fromFolder);
-						Collections.reverse(resources);
-						for (Resource resource : resources) {
-							SinkSnapshot load = ResourceManager.load(resource, true);
-							List<SinkValue> historicValues = load.getValues();
-							if (historicValues.size() >= amount) {
-								values.addAll(historicValues.subList(historicValues.size() - amount, historicValues.size()));
-								break getValues;
-							}
-							else {
-								values.addAll(historicValues);
-								amount -= historicValues.size();
-							}
+	}
+	
+	/**
+	 * Pushes a batch of points with a single lock acquisition and a single write to the temporary buffer.
+	 * If the batch contains complete partitions they are written directly instead of going through the current partition.
+	 * Points that are out of order are handled as they would be by push, if a point is rejected the points before it are kept.
+	 */
+	public void pushAll(long [] timestamps, long [] values, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > timestamps.length || offset + length > values.length) {
+			throw new IndexOutOfBoundsException("Invalid range " + offset + "-" + (offset + length) + " for arrays of size " + timestamps.length + " and " + values.length);
+		}
+		if (length == 0) {
+			return;
+		}
+		long started = measure();
+		TimeSeries batch = new TimeSeries(length);
+		for (int i = offset; i < offset + length; i++) {
+			batch.add(timestamps[i], values[i]);
+		}
+		batch.sort();
+		// anything pushed before this batch should be added first
+		if (buffer != null) {
+			drain();
+		}
+		boolean added = false;
+		synchronized(this) {
+			if (!closed) {
+				try {
+					TimeSeries current = this.current;
+					if (reorder != null || (!current.isEmpty() && batch.getTimestamp(0) < current.getTimestamp(current.size() - 1))) {
+						for (int i = 0; i < batch.size(); i++) {
+							add(batch.getTimestamp(i), batch.getValue(i));
 						}
 					}
 					else {
-						notFound++;
+						appendAll(batch.view());
 					}
-					// if there is a gap of 30 days (= 1 month), stop searching 
-					if (notFound > 30) {
-						break;
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				catch (ParseException e) {
+					throw new RuntimeException(e);
+				}
+				added = true;
+			}
+		}
+		if (!added) {
+			getSuccessor().pushAll(timestamps, values, offset, length);
+		}
+		record(DatabaseMetrics.PUSH, started);
+	}
+	
+	// adds a sorted batch that starts after the current partition
+	private void appendAll(TimeSeries.View batch) throws IOException, ParseException {
+		boolean background = getRolloverExecutor() != null;
+		// partitions that are written in the background must be in the temporary buffer until they are sealed
+		if (log != null && background) {
+			log.append(batch);
+		}
+		TimeSeries current = this.current;
+		boolean rolled = false;
+		int i = 0;
+		while (i < batch.size()) {
+			if (isFull(current, batch.getTimestamp(i))) {
+				rollover(current);
+				current = this.current;
+				rolled = true;
+			}
+			if (current.isEmpty()) {
+				int end = getPartitionEnd(batch, i);
+				// the batch continues after this partition so it is complete and can be written as is
+				if (end < batch.size()) {
+					TimeSeries partition = new TimeSeries(end - i);
+					for (int j = i; j < end; j++) {
+						partition.add(batch.getTimestamp(j), batch.getValue(j));
 					}
-					calendar.add(Calendar.DATE, -1);
+					rollover(partition);
+					current = this.current;
+					rolled = true;
+					i = end;
+					continue;
 				}
 			}
-			catch (ParseException e) {
-				throw new RuntimeException(e);
+			current.add(batch.getTimestamp(i), batch.getValue(i));
+			i++;
+		}
+		lastTimestamp = batch.getTimestamp(batch.size() - 1);
+		for (int j = 0; j < batch.size(); j++) {
+			observe(batch.getTimestamp(j), batch.getValue(j));
+		}
+		if (log != null && !background) {
+			// the sealed points no longer need to be in the temporary buffer, the rest of the batch is in current
+			if (rolled) {
+				log.reset(getUnsealed());
 			}
-			catch (IOException e) {
-				throw new RuntimeException(e);
+			else {
+				log.append(batch);
 			}
-			// reorder the values
-			Collections.sort(values, new SinkValueComparator<SinkValue>());
 		}
-		return new SinkSnapshotImpl(values, false);
 	}
-
-	@Override
-	public SinkSnapshot getSnapshotBetween(long from, long until) {
+	
+	// the index of the first point that does not fit in a partition that starts at the given index
+	private int getPartitionEnd(TimeSeries.View batch, int start) {
+		int end = start + 1;
+		while (end < batch.size() && (partitionSize <= 0 || end - start < partitionSize) && batch.getTimestamp(end) <= batch.getTimestamp(start) + partitionInterval) {
+			end++;
+		}
+		return end;
+	}
+	
+	/**
+	 * Builds sealed partitions straight from "timestamp,value" lines, bypassing the current partition and the temporary buffer.
+	 * This is meant to import history offline: the points must be sorted and must predate the points in memory.
+	 * Existing partitions that start at the same timestamp are overwritten, the range should not otherwise overlap with existing partitions.
+	 */
+	public long backfill(ReadableContainer<ByteBuffer> input) throws IOException, ParseException {
+		long start = getStart(getMemoryPartitions());
+		long count = 0;
+		lock.readLock().lock();
 		try {
-			final List<SinkValue> values = new ArrayList<SinkValue>();
-			// if we want data that is outside the current window, go to the historized data
-			List<SinkValue> currentValues = current.getValues();
-			if (currentValues.isEmpty() || from < currentValues.get(0).getTimestamp()) {
-				Date fromDate = new Date(from);
-				Date untilDate = new Date(until);
-				checkContainers: for (ResourceContainer<?> container : listContainers(fromDate, untilDate)) {
-					List<Resource> resources = getResources(from, until, container);
-					for (Resource resource : resources) {
-						SinkSnapshot load = ResourceManager.load(resource, true);
-						for (SinkValue value : load.getValues()) {
-							if (value.getTimestamp() >= from && value.getTimestamp() <= until) {
-								values.add(value);
-							}
-							else if (value.getTimestamp() > until) {
-								break checkContainers;
-							}
+			CsvDecoder decoder = new CsvDecoder(IOUtils.toInputStream(input));
+			TimeSeries partition = new TimeSeries();
+			long previous = Long.MIN_VALUE;
+			while (decoder.next()) {
+				long timestamp = decoder.getTimestamp(), value = decoder.getValue();
+				if (timestamp < previous) {
+					throw new ParseException("The backfill data is not sorted at line [" + decoder.getLine() + "]: " + timestamp + " < " + previous, decoder.getLine());
+				}
+				if (timestamp >= start) {
+					throw new IllegalArgumentException("Can not backfill data that overlaps with the current partition for '" + id + "' category '" + category + "': " + timestamp + " >= " + start);
+				}
+				if (isFull(partition, timestamp)) {
+					seal(partition);
+					partition = new TimeSeries();
+				}
+				partition.add(timestamp, value);
+				previous = timestamp;
+				count++;
+			}
+			if (!partition.isEmpty()) {
+				seal(partition);
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+			input.close();
+		}
+		return count;
+	}
+	
+	/**
+	 * The amount of points that were pushed through the ingestion buffer but could not be added because they were out of order and late data is not allowed
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * The amount of points that were pushed through the ingestion buffer but could not be added because of an error, e.g. while writing the temporary buffer
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	private void add(long timestamp, long value) {
+		try {
+			if (reorder == null) {
+				TimeSeries current = this.current;
+				if (!current.isEmpty() && timestamp < current.getTimestamp(current.size() - 1)) {
+					if (!lateDataAllowed) {
+						// the value is _before_ this partition, we currently can not handle historical data being pushed
+						if (timestamp < current.getTimestamp(0)) {
+							throw new IllegalArgumentException("Can not push historical data that predates the partition for '" + id + "' category '" + category + "': " + timestamp + " < " + current.getTimestamp(0));
+						}
+						// the value is after the start of the partition but before the end, we still do not support this because we want to go for "append" instead of reordering
+						else {
+							throw new IllegalArgumentException("Can not push historical data that is out of order within the current partition for '" + id + "' category '" + category + "': " + timestamp + " < " + current.getTimestamp(current.size() - 1));
 						}
 					}
+					late(timestamp, value);
+					return;
 				}
+				if (log != null) {
+					log.append(timestamp, value);
+				}
+				append(timestamp, value);
 			}
-			// if we also want value from the current window, add it
-			if (!currentValues.isEmpty() && until >= currentValues.get(0).getTimestamp()) {
-				for (SinkValue value : currentValues) {
-					if (value.getTimestamp() >= from && value.getTimestamp() <= until) {
-						values.add(value);
-					}
-					else if (value.getTimestamp() > until) {
-						break;
+			else {
+				// the value arrived after the reorder window has passed it by
+				if (timestamp < lastTimestamp) {
+					if (!lateDataAllowed) {
+						throw new IllegalArgumentException("Can not push historical data that falls outside of the reorder window for '" + id + "' category '" + category + "': " + timestamp + " < " + lastTimestamp);
 					}
+					late(timestamp, value);
+					return;
+				}
+				// the temporary buffer is replayed in sorted order so it does not matter that we log out of order
+				if (log != null) {
+					log.append(timestamp, value);
+				}
+				reorder.insert(timestamp, value);
+				maxTimestamp = Math.max(maxTimestamp, timestamp);
+				while (!reorder.isEmpty() && reorder.getFirstTimestamp() <= maxTimestamp - reorderWindow) {
+					long first = reorder.getFirstTimestamp(), firstValue = reorder.getFirstValue();
+					reorder.removeFirst();
+					append(first, firstValue);
 				}
 			}
-			return new SinkSnapshotImpl(values, false);
 		}
-		catch (ParseException e) {
+		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		catch (IOException e) {
+		catch (ParseException e) {
 			throw new RuntimeException(e);
 		}
 	}
-
-	private List<Resource> getResources(long from, long until, ResourceContainer<?> container) {
-		List<Resource> resources = new ArrayList<Resource>();
-		for (Resource resource : container) {
-			String name = resource.getName();
-			int index = name.indexOf('.');
-			if (index < 0) {
-				continue;
+	
+	// adds a value that is in order to the current partition
+	private void append(long timestamp, long value) throws IOException {
+		TimeSeries current = this.current;
+		boolean rolled = false;
+		// the value falls outside of this partition, close it and start a new one
+		if (isFull(current, timestamp)) {
+			rollover(current);
+			current = this.current;
+			rolled = true;
+		}
+		current.add(timestamp, value);
+		lastTimestamp = timestamp;
+		observe(timestamp, value);
+		// if the partition was written synchronously, remove it from the temporary buffer
+		if (rolled && log != null && sealing.isEmpty()) {
+			log.reset(getUnsealed());
+		}
+	}
+	
+	private void observe(long timestamp, long value) {
+		if (seeding != null) {
+			seeding.add(timestamp, value);
+		}
+		statistics.push(timestamp, value);
+		for (RollingWindow window : windows) {
+			window.push(timestamp, value);
+		}
+		for (Subscription.Feed feed : feeds) {
+			feed.offer(timestamp, value);
+		}
+	}
+	
+	/**
+	 * A point that is older than the points already in the partitions: if it belongs to the current partition it is inserted there.
+	 * Otherwise it is appended to the delta file of the partition it belongs to, which is merged whenever that partition is read.
+	 */
+	private void late(long timestamp, long value) throws IOException, ParseException {
+		TimeSeries current = this.current;
+		if (!current.isEmpty() && timestamp >= current.getTimestamp(0)) {
+			if (log != null) {
+				log.append(timestamp, value);
+			}
+			current.insert(timestamp, value);
+		}
+		else {
+			// compaction can not swap partitions while we are adding to them
+			lock.readLock().lock();
+			try {
+				Long partition = getPartition(timestamp);
+				// it predates all the data we have, it becomes a partition of its own
+				if (partition == null) {
+					TimeSeries series = new TimeSeries(1);
+					series.add(timestamp, value);
+					seal(series);
+				}
+				else {
+					ResourceContainer<?> directory = ResourceUtils.mkdirs(root, getFormatter().format(new Date(partition)));
+					Resource delta = directory.getChild(partition + ResourceManager.DELTA);
+					if (delta == null) {
+						delta = ((ManageableContainer<?>) directory).create(partition + ResourceManager.DELTA, "text/csv");
+					}
+					final SinkValue sinkValue = new SinkValueImpl(timestamp, value);
+					// the partition can still be sealing, in which case it is not cached afterwards either
+					synchronized(deltaLock) {
+						ResourceManager.append(delta, new SinkSnapshot() {
+							@Override
+							public List<SinkValue> getValues() {
+								return Arrays.asList(sinkValue);
+							}
+						}, false);
+						for (Resource resource : getResources(partition, partition, directory)) {
+							provider.getCache().remove(getCacheKey(resource));
+						}
+					}
+					TimeSeries series = new TimeSeries(1);
+					series.add(timestamp, value);
+					rollup(series.view());
+				}
 			}
-			String substring = name.substring(0, index);
-			long timestamp = Long.parseLong(substring);
-			if (timestamp >= from && timestamp <= until) {
-				resources.add(resource);
+			finally {
+				lock.readLock().unlock();
 			}
 		}
-		Collections.sort(resources, new Comparator<Resource>() {
-			@Override
-			public int compare(Resource o1, Resource o2) {
-				return o1.getName().compareTo(o2.getName());
+		late.incrementAndGet();
+	}
+	
+	// the start of the closed partition a timestamp belongs to, or null if it predates all of them
+	private Long getPartition(long timestamp) throws IOException {
+		Long partition = null;
+		// partitions that are still being written are newer than all the ones on disk
+		for (TimeSeries sealed : sealing) {
+			if (sealed.getTimestamp(0) <= timestamp && (partition == null || sealed.getTimestamp(0) > partition)) {
+				partition = sealed.getTimestamp(0);
 			}
-		});
-		return resources;
+		}
+		if (partition == null) {
+			partition = getIndex().floorKey(timestamp);
+		}
+		return partition;
 	}
 	
-	private List<ResourceContainer<?>> listContainers(Date from, Date to) throws IOException {
-		List<ResourceContainer<?>> containers = new ArrayList<ResourceContainer<?>>();
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(from);
-		while(from.before(to)) {
-			String path = getFormatter().format(from);
-			ResourceContainer<?> fromFolder = (ResourceContainer<?>) ResourceUtils.resolve(root, path);
-			if (fromFolder != null) {
-				containers.add(fromFolder);
+	/**
+	 * The amount of points that arrived too late to be added in order and were merged into the existing partitions
+	 */
+	public long getLate() {
+		return late.get();
+	}
+	
+	/**
+	 * Delivers the points that are added to this sink to the listener, see Subscription.
+	 * At most 1024 undelivered points are kept, if the listener falls further behind the oldest ones are dropped.
+	 */
+	public Subscription subscribe(SubscriptionListener listener) {
+		return subscribe(listener, 0, 1024, OverflowPolicy.DROP_OLDEST);
+	}
+	
+	/**
+	 * Delivers the points (or if an interval is given, aggregates per interval) that are added to this sink to the listener.
+	 * The subscription is kept by the provider so it survives the sink being evicted and reopened.
+	 */
+	public Subscription subscribe(SubscriptionListener listener, long interval, int capacity, OverflowPolicy policy) {
+		return provider.subscribe(Pattern.quote(id), category, listener, interval, capacity, policy);
+	}
+	
+	void attach(Subscription subscription) {
+		synchronized(feeds) {
+			for (Subscription.Feed feed : feeds) {
+				if (feed.getSubscription() == subscription) {
+					return;
+				}
 			}
-			calendar.add(Calendar.DATE, 1);
-			from = calendar.getTime();
+			feeds.add(subscription.newFeed(this));
 		}
-		return containers;
 	}
 	
-	private static SimpleDateFormat getFormatter() {
-		if (formatter.get() == null) {
-			formatter.set(new SimpleDateFormat("yyyy/MM/dd"));
+	void detach(Subscription subscription) {
+		synchronized(feeds) {
+			for (Subscription.Feed feed : feeds) {
+				if (feed.getSubscription() == subscription) {
+					feeds.remove(feed);
+				}
+			}
 		}
-		return formatter.get();
 	}
 
-	public String getCategory() {
-		return category;
+	private void rollover(TimeSeries partition) throws IOException {
+		Executor executor = getRolloverExecutor();
+		if (executor == null) {
+			seal(partition);
+			current = new TimeSeries();
+		}
+		// the partition stays in memory (and in the temporary buffer) until it is written
+		else {
+			sealing.add(partition);
+			current = new TimeSeries();
+			retry(executor);
+			persist(executor, partition);
+		}
 	}
-
-	public String getId() {
-		return id;
+	
+	// once the sink is closing, the partitions are written by the thread that closes it
+	private Executor getRolloverExecutor() {
+		return closed ? null : provider.getRolloverExecutor();
 	}
-
-	@Override
-	public SinkStatistics getStatistics() {
-		return statistics;
+	
+	// must be called while holding the sink
+	private void persist(Executor executor, final TimeSeries partition) {
+		persisting++;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				persist(partition);
+			}
+		});
+	}
+	
+	// hands the partitions that could not be written to the executor again, oldest first, must be called while holding the sink
+	private void retry(Executor executor) {
+		if (!retries.isEmpty()) {
+			List<TimeSeries> partitions = new ArrayList<TimeSeries>();
+			for (TimeSeries partition : sealing) {
+				if (retries.remove(partition)) {
+					partitions.add(partition);
+				}
+			}
+			for (TimeSeries partition : partitions) {
+				persist(executor, partition);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a partition on the rollover executor. Failures are not thrown: with backpressure this runs on the pushing thread which has already moved on to the next partition.
+	 * A partition that could not be written stays in memory and is retried on the next rollover or flush.
+	 */
+	private void persist(TimeSeries partition) {
+		boolean written = false;
+		try {
+			seal(partition);
+			written = true;
+		}
+		catch (IOException e) {
+			provider.getRolloverFailures().incrementAndGet();
+		}
+		catch (RuntimeException e) {
+			provider.getRolloverFailures().incrementAndGet();
+		}
+		synchronized(this) {
+			try {
+				if (written) {
+					sealed.add(partition);
+					// partitions can be written out of order, only release them in order so a reader never finds a partition on disk that is newer than one in memory
+					while (!sealing.isEmpty() && sealed.remove(sealing.get(0))) {
+						sealing.remove(0);
+					}
+					// remove the sealed points from the temporary buffer
+					if (log != null) {
+						log.reset(getUnsealed());
+					}
+				}
+				else {
+					retries.add(partition);
+				}
+			}
+			// the temporary buffer still has the sealed points, replaying them after a crash simply writes the partition again
+			catch (IOException e) {
+				provider.getRolloverFailures().incrementAndGet();
+			}
+			finally {
+				persisting--;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Captures the partitions on disk and the points that are not yet in a partition at the same moment, for an export.
+	 * A merge that is running is finished first, new ones are held back while the provider is exporting so the captured partitions stay in place.
+	 */
+	SinkCapture capture() throws IOException {
+		if (buffer != null) {
+			drain();
+		}
+		// tags that are still waiting for their delayed write
+		saveTags();
+		// the same order as for late points: first the sink, then the partitions
+		synchronized(this) {
+			lock.readLock().lock();
+			try {
+				TimeSeries unsealed = getUnsealed();
+				// a partition that is being written in the background can already be on disk, it is part of the unsealed points
+				long cutoff = unsealed.isEmpty() ? Long.MAX_VALUE : unsealed.getTimestamp(0);
+				Map<String, Set<String>> days = new TreeMap<String, Set<String>>();
+				for (Map.Entry<Long, Resource> entry : getIndex().headMap(cutoff).entrySet()) {
+					String path = getFormatter().format(new Date(entry.getKey()));
+					if (!days.containsKey(path)) {
+						days.put(path, new HashSet<String>());
+					}
+					days.get(path).add(entry.getValue().getName());
+				}
+				return new SinkCapture(id, category, root, days, unsealed);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+	
+	// all the points that are not yet in a sealed partition
+	private TimeSeries getUnsealed() {
+		TimeSeries unsealed = new TimeSeries();
+		for (TimeSeries partition : sealing) {
+			TimeSeries.View view = partition.view();
+			for (int i = 0; i < view.size(); i++) {
+				unsealed.add(view.getTimestamp(i), view.getValue(i));
+			}
+		}
+		TimeSeries.View view = current.view();
+		for (int i = 0; i < view.size(); i++) {
+			unsealed.add(view.getTimestamp(i), view.getValue(i));
+		}
+		if (reorder != null) {
+			view = reorder.copy().view();
+			for (int i = 0; i < view.size(); i++) {
+				unsealed.add(view.getTimestamp(i), view.getValue(i));
+			}
+		}
+		return unsealed;
+	}
+	
+	/**
+	 * Writes all pending data, including partitions that could not be written in the background
+	 */
+	public void close() {
+		flush();
+		try {
+			synchronized(this) {
+				// from now on points are handed to the sink that replaces us
+				closed = true;
+			}
+			// the points that were pushed before that are still ours, pushes that are waiting for room in the buffer need us to drain
+			if (buffer != null) {
+				int attempts = 0;
+				while (buffering.get() > 0) {
+					drain();
+					backoff(attempts++);
+				}
+				drain();
+			}
+			synchronized(this) {
+				try {
+					// partitions that are being written in the background must be done before we write the rest ourselves
+					while (persisting > 0) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RuntimeException(e);
+						}
+					}
+					// emit everything that is waiting to be reordered
+					if (reorder != null) {
+						while (!reorder.isEmpty()) {
+							long timestamp = reorder.getFirstTimestamp(), value = reorder.getFirstValue();
+							reorder.removeFirst();
+							append(timestamp, value);
+						}
+					}
+					if (!sealing.isEmpty()) {
+						for (TimeSeries partition : sealing) {
+							if (!sealed.contains(partition)) {
+								seal(partition);
+								sealed.add(partition);
+							}
+						}
+						sealing.clear();
+						sealed.clear();
+						retries.clear();
+						if (log != null) {
+							log.reset(current);
+						}
+					}
+				}
+				catch (IOException e) {
+					reopen();
+					throw e;
+				}
+				catch (RuntimeException e) {
+					reopen();
+					throw e;
+				}
+			}
+			saveWindow();
+			if (log != null) {
+				log.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// a close that failed leaves the sink in use, the partitions it could not write are retried on the next rollover or flush, must be called while holding the sink
+	private void reopen() {
+		closed = false;
+		for (TimeSeries partition : sealing) {
+			if (!sealed.contains(partition)) {
+				retries.add(partition);
+			}
+		}
+	}
+	
+	private boolean isFull(TimeSeries current, long timestamp) {
+		return (partitionSize > 0 && current.size() >= partitionSize) || (!current.isEmpty() && timestamp > current.getTimestamp(0) + partitionInterval);
+	}
+	
+	private void seal(TimeSeries partition) throws IOException {
+		long started = measure();
+		String path = getFormatter().format(new Date(partition.getTimestamp(0)));
+		ResourceContainer<?> directory = ResourceUtils.mkdirs(root, path);
+		PartitionFormat format = provider.getPartitionFormat();
+		String name = partition.getTimestamp(0) + format.getExtension();
+		// during recovery we may be rewriting a partition that was already sealed
+		Resource create = directory.getChild(name);
+		if (create == null) {
+			create = ((ManageableContainer<?>) directory).create(name, format.getContentType());
+		}
+		ResourceManager.save(create, partition, format);
+		// if the index is being built, it either sees the partition on disk or we update it afterwards
+		synchronized(indexLock) {
+			// when recovering a partition that has since been merged, the merged one remains in use
+			Map.Entry<Long, Resource> floor = index == null ? null : index.floorEntry(partition.getTimestamp(0));
+			if (index != null && (floor == null || !isMerged(floor.getValue()) || getLastTimestamp(floor.getValue()) < partition.getTimestamp(0))) {
+				index.put(partition.getTimestamp(0), create);
+			}
+		}
+		// write a summary so aggregate queries don't need to decode the partition
+		Aggregate summary = new Aggregate(partition.getTimestamp(0));
+		for (int i = 0; i < partition.size(); i++) {
+			summary.push(partition.getTimestamp(i), partition.getValue(i));
+		}
+		ResourceManager.appendSummary(directory, summary);
+		ResourceManager.appendSketch(directory, partition.getTimestamp(0), getSketch(partition.view()));
+		rollup(partition.view());
+		// we already have the decoded partition, a query for recent data is likely to need it unless late points have to be merged in
+		synchronized(deltaLock) {
+			if (directory.getChild(partition.getTimestamp(0) + ResourceManager.DELTA) == null) {
+				provider.getCache().put(getCacheKey(create), partition);
+			}
+		}
+		if (started != 0) {
+			record(DatabaseMetrics.ROLLOVER, started);
+			provider.getMetrics().getInstrument(DatabaseMetrics.PARTITION_BYTES).record(getSize(create));
+		}
+	}
+	
+	/**
+	 * Replays the temporary buffer: if we crashed after sealing a partition but before the buffer was reset, it still contains the sealed points.
+	 * Because partitions are named after their first timestamp, sealing them again simply overwrites them with the same data.
+	 * A partition that has been merged since is skipped, the merged partition already contains its points.
+	 */
+	private void recover() throws IOException, ParseException {
+		TimeSeries loaded = log.load();
+		// with reordering or late data the buffer can be out of order
+		loaded.sort();
+		TimeSeries.View recovered = loaded.view();
+		TimeSeries current = new TimeSeries(Math.max(16, recovered.size()));
+		boolean sealed = false;
+		for (int i = 0; i < recovered.size(); i++) {
+			if (isFull(current, recovered.getTimestamp(i))) {
+				// sealing a partition that has since been merged would replace the summary of the merged one with its own
+				if (!isCompacted(current)) {
+					seal(current);
+				}
+				current = new TimeSeries();
+				sealed = true;
+			}
+			current.add(recovered.getTimestamp(i), recovered.getValue(i));
+			lastTimestamp = recovered.getTimestamp(i);
+		}
+		this.current = current;
+		this.maxTimestamp = lastTimestamp;
+		if (sealed) {
+			log.reset(current);
+		}
+	}
+	
+	// whether the partition is part of a complete merged partition
+	private boolean isCompacted(TimeSeries partition) throws IOException {
+		ResourceContainer<?> directory = (ResourceContainer<?>) ResourceUtils.resolve(root, getFormatter().format(new Date(partition.getTimestamp(0))));
+		if (directory == null) {
+			return false;
+		}
+		List<Resource> resources = getResources(Long.MIN_VALUE, partition.getTimestamp(0), directory);
+		if (resources.isEmpty()) {
+			return false;
+		}
+		Resource floor = resources.get(resources.size() - 1);
+		return isMerged(floor) && getLastTimestamp(floor) >= partition.getTimestamp(partition.size() - 1);
+	}
+	
+	/**
+	 * Rewrites the partitions of this sink into the given format while it is in use, partitions that are written afterwards use the format of the provider.
+	 * Readers are held back until it is done, the index is rebuilt from the converted partitions the next time it is needed.
+	 */
+	public int convert(PartitionFormat target) {
+		lock.writeLock().lock();
+		try {
+			// the partitions of an export have to stay in place until they are copied
+			if (provider.isExporting()) {
+				throw new IllegalStateException("Can not convert the partitions of '" + id + "' category '" + category + "' while exporting");
+			}
+			List<Resource> originals = new ArrayList<Resource>();
+			int converted = PartitionConverter.convert(root, target, originals);
+			for (Resource original : originals) {
+				provider.getCache().remove(getCacheKey(original));
+			}
+			synchronized(indexLock) {
+				index = null;
+			}
+			return converted;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes the days that have expired according to the retention and merges adjacent small partitions in the other days.
+	 * Days that can still be written to (today and the days of the partitions in memory) are left alone.
+	 */
+	public void compact() {
+		try {
+			long retention = provider.getPartitionIntervalProvider().getRetention(id, category);
+			Date now = new Date();
+			Set<String> busy = new HashSet<String>();
+			busy.add(getFormatter().format(now));
+			for (long start : getStarts(getMemoryPartitions())) {
+				busy.add(getFormatter().format(new Date(start)));
+			}
+			for (String path : listDays()) {
+				if (busy.contains(path)) {
+					continue;
+				}
+				Calendar calendar = Calendar.getInstance();
+				calendar.setTime(getFormatter().parse(path));
+				calendar.add(Calendar.DATE, 1);
+				if (retention > 0 && calendar.getTimeInMillis() <= now.getTime() - retention) {
+					expire(path);
+				}
+				else {
+					compact((ResourceContainer<?>) ResourceUtils.resolve(root, path));
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// merges runs of adjacent partitions as long as they stay below the compaction size
+	private void compact(ResourceContainer<?> container) throws IOException, ParseException {
+		long maximum = provider.getCompactionSize();
+		Map<Long, Aggregate> summaries = ResourceManager.loadSummaries(container);
+		List<Resource> run = new ArrayList<Resource>();
+		long points = 0;
+		for (Resource resource : getResources(Long.MIN_VALUE, Long.MAX_VALUE, container)) {
+			Aggregate summary = summaries.get(getTimestamp(resource));
+			long count = summary == null ? loadPartition(resource).size() : summary.getCount();
+			if (points + count > maximum) {
+				merge(container, run);
+				run.clear();
+				points = 0;
+			}
+			// large partitions are left as they are
+			if (count < maximum) {
+				run.add(resource);
+				points += count;
+			}
+		}
+		merge(container, run);
+		cleanup(container);
+	}
+	
+	/**
+	 * The merged partition is written next to the original ones and is only picked up by readers once its summary is written.
+	 * It is built under the read lock which only keeps other compactions out, late points can still be added to the run in the meantime.
+	 * Only the swap (the summary, the index and removing the originals) is done under the write lock so a reader never sees partial data, even if we crash halfway.
+	 * If the run has changed by then, the merged partition is discarded and the run is merged in the next compaction.
+	 */
+	private void merge(ResourceContainer<?> container, List<Resource> run) throws IOException, ParseException {
+		// the partitions of an export have to stay in place until they are copied, we try again in the next run
+		if (run.size() < 2 || provider.isExporting()) {
+			return;
+		}
+		long reclaimed = 0;
+		TimeSeries merged = new TimeSeries();
+		List<String> names = new ArrayList<String>();
+		// the size of the late points of every partition when it was read, -1 if it had none
+		Map<String, Long> deltas = new HashMap<String, Long>();
+		String name;
+		lock.readLock().lock();
+		try {
+			for (Resource resource : run) {
+				String deltaName = getTimestamp(resource) + ResourceManager.DELTA;
+				Resource delta = container.getChild(deltaName);
+				deltas.put(deltaName, delta == null ? -1 : getSize(delta));
+				if (delta != null) {
+					names.add(deltaName);
+					reclaimed += getSize(delta);
+				}
+				// this includes the late points
+				TimeSeries.View series = loadPartition(resource).view();
+				for (int i = 0; i < series.size(); i++) {
+					merged.add(series.getTimestamp(i), series.getValue(i));
+				}
+				names.add(resource.getName());
+				reclaimed += getSize(resource);
+			}
+			long first = getTimestamp(run.get(0)), last = merged.getTimestamp(merged.size() - 1);
+			PartitionFormat format = provider.getPartitionFormat();
+			name = first + "-" + last + format.getExtension();
+			// we would be overwriting a partition that readers can be using
+			if (names.contains(name)) {
+				return;
+			}
+			Resource target = container.getChild(name);
+			if (target == null) {
+				target = ((ManageableContainer<?>) container).create(name, format.getContentType());
+			}
+			ResourceManager.save(target, merged, format);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			if (provider.isExporting() || !isUnchanged(container, name, run, deltas)) {
+				// it has no summary so no reader has picked it up
+				((ManageableContainer<?>) container).delete(name);
+				return;
+			}
+			Resource target = container.getChild(name);
+			long first = getTimestamp(run.get(0)), last = merged.getTimestamp(merged.size() - 1);
+			Aggregate summary = new Aggregate(first);
+			for (int i = 0; i < merged.size(); i++) {
+				summary.push(merged.getTimestamp(i), merged.getValue(i));
+			}
+			ResourceManager.appendSummary(container, summary);
+			ResourceManager.appendSketch(container, first, getSketch(merged.view()));
+			for (Resource resource : run) {
+				provider.getCache().remove(getCacheKey(resource));
+			}
+			// an index that is being built must not pick up the originals
+			synchronized(indexLock) {
+				if (index != null) {
+					index.subMap(first, true, last, true).clear();
+					index.put(first, target);
+				}
+				for (String original : names) {
+					((ManageableContainer<?>) container).delete(original);
+				}
+			}
+			provider.getCache().put(getCacheKey(target), merged);
+			provider.getCompactedFiles().addAndGet(run.size());
+			provider.getReclaimedBytes().addAndGet(reclaimed - getSize(target));
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// whether the merged partition and the partitions of the run (including their late points) are still as they were when the run was merged
+	private static boolean isUnchanged(ResourceContainer<?> container, String name, List<Resource> run, Map<String, Long> deltas) {
+		if (container.getChild(name) == null) {
+			return false;
+		}
+		for (Resource resource : run) {
+			if (container.getChild(resource.getName()) == null) {
+				return false;
+			}
+		}
+		for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+			Resource resource = container.getChild(delta.getKey());
+			if ((resource == null ? -1 : getSize(resource)) != delta.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// removes the partitions that were replaced by a merged one and incomplete merged partitions, these are left behind if we crash during a merge
+	private void cleanup(ResourceContainer<?> container) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (provider.isExporting()) {
+				return;
+			}
+			Map<Long, Resource> starts = new HashMap<Long, Resource>();
+			Set<String> active = new HashSet<String>();
+			for (Resource resource : getResources(Long.MIN_VALUE, Long.MAX_VALUE, container)) {
+				starts.put(getTimestamp(resource), resource);
+				active.add(resource.getName());
+			}
+			List<Resource> obsolete = new ArrayList<Resource>();
+			for (Resource resource : container) {
+				PartitionFormat format = PartitionFormat.fromName(resource.getName());
+				if (format == null || active.contains(resource.getName())) {
+					continue;
+				}
+				// a partition that exists in both formats during a conversion is not obsolete, the original that a merged partition starts with is
+				Resource replacement = starts.get(format.getTimestamp(resource.getName()));
+				if (format.isMerged(resource.getName()) || replacement == null || isMerged(replacement)) {
+					obsolete.add(resource);
+				}
+			}
+			for (Resource resource : obsolete) {
+				provider.getCache().remove(getCacheKey(resource));
+				provider.getReclaimedBytes().addAndGet(getSize(resource));
+				((ManageableContainer<?>) container).delete(resource.getName());
+			}
+			// the sidecars are append-only, drop the entries of the partitions that no longer exist
+			Map<Long, Aggregate> summaries = ResourceManager.loadSummaries(container);
+			summaries.keySet().retainAll(starts.keySet());
+			if (ResourceManager.loadAggregates(container, ResourceManager.SUMMARY).size() > summaries.size()) {
+				Map<Long, QuantileSketch> sketches = ResourceManager.loadSketches(container);
+				sketches.keySet().retainAll(starts.keySet());
+				ResourceManager.saveSketches(container, sketches);
+				ResourceManager.saveSummaries(container, summaries.values());
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// removes an entire day, and the month and year if they are empty afterwards
+	private void expire(String path) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (provider.isExporting()) {
+				return;
+			}
+			ResourceContainer<?> container = (ResourceContainer<?>) ResourceUtils.resolve(root, path);
+			if (container != null) {
+				synchronized(indexLock) {
+					for (Resource resource : container) {
+						provider.getCache().remove(getCacheKey(resource));
+						PartitionFormat format = PartitionFormat.fromName(resource.getName());
+						if (index != null && format != null) {
+							index.remove(format.getTimestamp(resource.getName()));
+						}
+					}
+					provider.getReclaimedBytes().addAndGet(clear(container));
+				}
+				String [] parts = path.split("/");
+				for (int i = parts.length - 1; i >= 0; i--) {
+					ResourceContainer<?> parent = root;
+					for (int j = 0; j < i; j++) {
+						parent = (ResourceContainer<?>) parent.getChild(parts[j]);
+					}
+					ResourceContainer<?> child = (ResourceContainer<?>) parent.getChild(parts[i]);
+					if (child == null || child.iterator().hasNext()) {
+						break;
+					}
+					((ManageableContainer<?>) parent).delete(parts[i]);
+				}
+				provider.getExpiredDays().incrementAndGet();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// deletes everything in the container, returns the amount of bytes that were removed
+	private static long clear(ResourceContainer<?> container) throws IOException {
+		long size = 0;
+		List<Resource> children = new ArrayList<Resource>();
+		for (Resource child : container) {
+			children.add(child);
+		}
+		for (Resource child : children) {
+			if (child instanceof ResourceContainer) {
+				size += clear((ResourceContainer<?>) child);
+			}
+			else {
+				size += getSize(child);
+			}
+			((ManageableContainer<?>) container).delete(child.getName());
+		}
+		return size;
+	}
+	
+	private static long getSize(Resource resource) {
+		return resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : 0;
+	}
+	
+	// all the day directories (yyyy/MM/dd) of this sink, oldest first
+	private List<String> listDays() {
+		List<String> days = new ArrayList<String>();
+		for (String year : listNumbered(root, 4)) {
+			ResourceContainer<?> yearContainer = (ResourceContainer<?>) root.getChild(year);
+			for (String month : listNumbered(yearContainer, 2)) {
+				ResourceContainer<?> monthContainer = (ResourceContainer<?>) yearContainer.getChild(month);
+				for (String day : listNumbered(monthContainer, 2)) {
+					days.add(year + "/" + month + "/" + day);
+				}
+			}
+		}
+		return days;
+	}
+	
+	private static List<String> listNumbered(ResourceContainer<?> container, int length) {
+		List<String> names = new ArrayList<String>();
+		for (Resource child : container) {
+			if (child instanceof ResourceContainer && child.getName().length() == length && child.getName().matches("[0-9]+")) {
+				names.add(child.getName());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+	
+	/**
+	 * Writes any pending points to the temporary buffer
+	 */
+	public void flush() {
+		if (buffer != null) {
+			drain();
+		}
+		synchronized(this) {
+			Executor executor = getRolloverExecutor();
+			if (executor != null) {
+				retry(executor);
+			}
+		}
+		saveTags();
+		if (log != null) {
+			try {
+				log.flush();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public SinkSnapshot getSnapshotUntil(int amount, long until) {
+		long started = measure();
+		int visited = 0;
+		List<TimeSeries.View> memory = getMemoryPartitions();
+		Set<Long> inMemory = getStarts(memory);
+		int remaining = amount;
+		// we go back in time so we gather the partitions newest first
+		List<TimeSeries.View> history = new ArrayList<TimeSeries.View>();
+		for (int i = memory.size() - 1; i >= 0 && remaining > 0; i--) {
+			TimeSeries.View series = memory.get(i);
+			series = series.subView(Math.max(0, series.upperBound(until) - remaining), series.upperBound(until));
+			if (!series.isEmpty()) {
+				history.add(series);
+				remaining -= series.size();
+			}
+		}
+		// if we don't have enough values yet, look through the history files
+		if (remaining > 0) {
+			// compaction can not swap partitions while we are reading them
+			lock.readLock().lock();
+			try {
+				List<Resource> resources = new ArrayList<Resource>();
+				for (Resource resource : getIndex().headMap(until, true).descendingMap().values()) {
+					if (!inMemory.contains(getTimestamp(resource))) {
+						resources.add(resource);
+					}
+				}
+				// decode as many partitions at once as we are allowed to, so we don't decode too much if we need only a few values
+				int batchSize = Math.max(1, provider.getQueryParallelism());
+				getValues : for (int i = 0; i < resources.size(); i += batchSize) {
+					for (TimeSeries partition : loadPartitions(resources.subList(i, Math.min(resources.size(), i + batchSize)))) {
+						visited++;
+						TimeSeries.View series = partition.view();
+						series = series.subView(0, series.upperBound(until));
+						if (series.size() >= remaining) {
+							history.add(series.subView(series.size() - remaining, series.size()));
+							break getValues;
+						}
+						else {
+							history.add(series);
+							remaining -= series.size();
+						}
+					}
+				}
+			}
+			catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		Collections.reverse(history);
+		SinkSnapshot snapshot = merge(history);
+		record(DatabaseMetrics.QUERY, started);
+		recordPartitions(started, visited);
+		return snapshot;
+	}
+
+	@Override
+	public SinkSnapshot getSnapshotBetween(long from, long until) {
+		long started = measure();
+		int visited = 0;
+		try {
+			List<TimeSeries.View> memory = getMemoryPartitions();
+			List<TimeSeries.View> parts = new ArrayList<TimeSeries.View>();
+			// if we want data that is outside the in-memory partitions, go to the historized data
+			if (from < getStart(memory)) {
+				lock.readLock().lock();
+				try {
+					List<Resource> resources = getHistory(from, until, getStarts(memory));
+					visited = resources.size();
+					for (TimeSeries partition : loadPartitions(resources)) {
+						parts.add(partition.view().between(from, until));
+					}
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+			}
+			for (TimeSeries.View series : memory) {
+				parts.add(series.between(from, until));
+			}
+			return merge(parts);
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			record(DatabaseMetrics.QUERY, started);
+			recordPartitions(started, visited);
+		}
+	}
+
+	/**
+	 * Passes all the values between from and until (inclusive) to the consumer in order.
+	 * Unlike the snapshots, the partitions are read one by one without materializing them (unless they are cached) and reading stops once until is passed.
+	 */
+	public void scan(long from, long until, LongPairConsumer consumer) {
+		long started = measure();
+		int visited = 0;
+		try {
+			List<TimeSeries.View> memory = getMemoryPartitions();
+			if (from < getStart(memory)) {
+				lock.readLock().lock();
+				try {
+					for (Resource resource : getHistory(from, until, getStarts(memory))) {
+						visited++;
+						if (!scan(resource, from, until, consumer)) {
+							return;
+						}
+					}
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+			}
+			for (TimeSeries.View series : memory) {
+				TimeSeries.View range = series.between(from, until);
+				for (int i = 0; i < range.size(); i++) {
+					consumer.accept(range.getTimestamp(i), range.getValue(i));
+				}
+			}
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			record(DatabaseMetrics.QUERY, started);
+			recordPartitions(started, visited);
+		}
+	}
+	
+	// returns false if the partition has values after until
+	private boolean scan(Resource resource, long from, long until, LongPairConsumer consumer) throws IOException, ParseException {
+		TimeSeries series = provider.getCache().get(getCacheKey(resource));
+		// late points have to be merged in
+		if (series == null && resource.getParent().getChild(getTimestamp(resource) + ResourceManager.DELTA) != null) {
+			series = loadPartition(resource);
+		}
+		if (series == null) {
+			long started = measure();
+			File file = getMappedFile(resource);
+			boolean complete = file == null ? ResourceManager.scan(resource, from, until, consumer) : MappedStorage.scan(file, from, until, consumer);
+			record(DatabaseMetrics.DECODE, started);
+			return complete;
+		}
+		TimeSeries.View view = series.view();
+		TimeSeries.View range = view.between(from, until);
+		for (int i = 0; i < range.size(); i++) {
+			consumer.accept(range.getTimestamp(i), range.getValue(i));
+		}
+		return view.isEmpty() || view.getTimestamp(view.size() - 1) <= until;
+	}
+	
+	// the historic partitions that start in the given range and are no longer in memory, in order
+	private List<Resource> getHistory(long from, long until, Set<Long> inMemory) throws IOException {
+		ConcurrentNavigableMap<Long, Resource> index = getIndex();
+		// the partition that contains from can start before it
+		Long first = index.floorKey(from);
+		List<Resource> history = new ArrayList<Resource>();
+		for (Resource resource : index.subMap(first == null ? from : first, true, until, true).values()) {
+			if (!inMemory.contains(getTimestamp(resource))) {
+				history.add(resource);
+			}
+		}
+		return history;
+	}
+	
+	/**
+	 * The historic partitions by their first timestamp. The index is built from the directories the first time it is needed, afterwards it is updated whenever we write, merge or remove partitions.
+	 * Those updates are done under the same lock as the build, so a partition that is written or removed while the index is built is never missed.
+	 * If the partitions are modified by something else (e.g. a conversion), the sink needs to be reloaded.
+	 */
+	private ConcurrentNavigableMap<Long, Resource> getIndex() throws IOException {
+		if (index == null) {
+			synchronized(indexLock) {
+				if (index == null) {
+					ConcurrentNavigableMap<Long, Resource> index = new ConcurrentSkipListMap<Long, Resource>();
+					for (String path : listDays()) {
+						for (Resource resource : getResources(Long.MIN_VALUE, Long.MAX_VALUE, (ResourceContainer<?>) ResourceUtils.resolve(root, path))) {
+							index.put(getTimestamp(resource), resource);
+						}
+					}
+					this.index = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Calculates the statistics for all the values between from and until (inclusive), grouped in buckets of the given size.
+	 * Buckets are aligned to multiples of the bucket size, if the bucket size is 0 or less, a single aggregate is returned.
+	 * Historic partitions that fall entirely within a bucket are answered from their summary without decoding them.
+	 */
+	public List<Aggregate> getStatisticsBetween(long from, long until, long bucketMillis) {
+		long started = measure();
+		int visited = 0;
+		try {
+			Map<Long, Aggregate> buckets = new TreeMap<Long, Aggregate>();
+			List<TimeSeries.View> memory = getMemoryPartitions();
+			if (from < getStart(memory)) {
+				lock.readLock().lock();
+				try {
+					// the summaries and late points per directory
+					Map<String, Map<Long, Aggregate>> summaries = new HashMap<String, Map<Long, Aggregate>>();
+					Map<String, Set<Long>> deltas = new HashMap<String, Set<Long>>();
+					for (Resource resource : getHistory(from, until, getStarts(memory))) {
+						ResourceContainer<?> container = resource.getParent();
+						String path = getFormatter().format(new Date(getTimestamp(resource)));
+						if (!summaries.containsKey(path)) {
+							summaries.put(path, ResourceManager.loadSummaries(container));
+							deltas.put(path, getDeltas(container));
+						}
+						long timestamp = getTimestamp(resource);
+						// the summary does not include the late points
+						Aggregate summary = deltas.get(path).contains(timestamp) ? null : summaries.get(path).get(timestamp);
+						if (summary != null && summary.getUntil() < from) {
+							continue;
+						}
+						else if (summary != null && summary.getFrom() >= from && summary.getUntil() <= until && getBucket(summary.getFrom(), bucketMillis) == getBucket(summary.getUntil(), bucketMillis)) {
+							getAggregate(buckets, getBucket(summary.getFrom(), bucketMillis)).merge(summary);
+						}
+						else {
+							visited++;
+							aggregate(buckets, loadPartition(resource).view().between(from, until), bucketMillis);
+						}
+					}
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+			}
+			for (TimeSeries.View series : memory) {
+				aggregate(buckets, series.between(from, until), bucketMillis);
+			}
+			return new ArrayList<Aggregate>(buckets.values());
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			record(DatabaseMetrics.QUERY, started);
+			recordPartitions(started, visited);
+		}
+	}
+	
+	/**
+	 * Estimates the distribution of the values between from and until (inclusive), use getQuantile on the result for percentiles.
+	 * Historic partitions that fall entirely within the range are answered from their sketch without decoding them.
+	 */
+	public QuantileSketch getSketchBetween(long from, long until) {
+		long started = measure();
+		int visited = 0;
+		try {
+			QuantileSketch sketch = new QuantileSketch();
+			List<TimeSeries.View> memory = getMemoryPartitions();
+			if (from < getStart(memory)) {
+				lock.readLock().lock();
+				try {
+					Map<String, Map<Long, Aggregate>> summaries = new HashMap<String, Map<Long, Aggregate>>();
+					Map<String, Map<Long, QuantileSketch>> sketches = new HashMap<String, Map<Long, QuantileSketch>>();
+					Map<String, Set<Long>> deltas = new HashMap<String, Set<Long>>();
+					for (Resource resource : getHistory(from, until, getStarts(memory))) {
+						ResourceContainer<?> container = resource.getParent();
+						String path = getFormatter().format(new Date(getTimestamp(resource)));
+						if (!summaries.containsKey(path)) {
+							summaries.put(path, ResourceManager.loadSummaries(container));
+							sketches.put(path, ResourceManager.loadSketches(container));
+							deltas.put(path, getDeltas(container));
+						}
+						long timestamp = getTimestamp(resource);
+						// the summary tells us whether the partition is entirely within the range, neither includes the late points
+						Aggregate summary = deltas.get(path).contains(timestamp) ? null : summaries.get(path).get(timestamp);
+						QuantileSketch stored = summary == null ? null : sketches.get(path).get(timestamp);
+						if (summary != null && summary.getUntil() < from) {
+							continue;
+						}
+						else if (stored != null && stored.getCount() == summary.getCount() && summary.getFrom() >= from && summary.getUntil() <= until) {
+							sketch.merge(stored);
+						}
+						else {
+							visited++;
+							push(sketch, loadPartition(resource).view().between(from, until));
+						}
+					}
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+			}
+			for (TimeSeries.View series : memory) {
+				push(sketch, series.between(from, until));
+			}
+			return sketch;
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			record(DatabaseMetrics.QUERY, started);
+			recordPartitions(started, visited);
+		}
+	}
+	
+	private static QuantileSketch getSketch(TimeSeries.View series) {
+		QuantileSketch sketch = new QuantileSketch();
+		push(sketch, series);
+		return sketch;
+	}
+	
+	private static void push(QuantileSketch sketch, TimeSeries.View series) {
+		for (int i = 0; i < series.size(); i++) {
+			sketch.push(series.getValue(i));
+		}
+	}
+	
+	/**
+	 * Calculates the statistics between from and until in buckets of the given resolution (in ms) using the coarsest rollup that is at least as fine as the resolution.
+	 * Because a rollup bucket is not split, the buckets at the edges of the range can include points just outside of it.
+	 * If there is no suitable rollup (or its retention does not reach back to from), the statistics are calculated from the raw data.
+	 * Note that rollups are only computed for partitions that are closed after they were configured.
+	 */
+	public List<Aggregate> getRollupBetween(long from, long until, long resolution) {
+		long tier = getRollupTier(from, resolution);
+		if (tier <= 0) {
+			return getStatisticsBetween(from, until, resolution);
+		}
+		try {
+			Map<Long, Aggregate> buckets = new TreeMap<Long, Aggregate>();
+			List<TimeSeries.View> memory = getMemoryPartitions();
+			long start = getStart(memory);
+			if (from < start) {
+				ResourceContainer<?> container = (ResourceContainer<?>) ResourceUtils.resolve(root, ROLLUP + "/" + tier);
+				if (container != null) {
+					Calendar calendar = Calendar.getInstance();
+					calendar.setTime(new Date(getBucket(from, tier)));
+					calendar.set(Calendar.DAY_OF_MONTH, 1);
+					while (calendar.getTimeInMillis() <= until) {
+						for (Aggregate aggregate : ResourceManager.loadAggregates(container, getRollupName(calendar.getTime()))) {
+							// the data that is still in memory is aggregated from the partitions themselves
+							if (aggregate.getFrom() >= start || aggregate.getUntil() < from || aggregate.getFrom() > until) {
+								continue;
+							}
+							getAggregate(buckets, getBucket(aggregate.getTimestamp(), resolution)).merge(aggregate);
+						}
+						calendar.add(Calendar.MONTH, 1);
+					}
+				}
+			}
+			for (TimeSeries.View series : memory) {
+				aggregate(buckets, series.between(from, until), resolution);
+			}
+			return new ArrayList<Aggregate>(buckets.values());
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Calculates at most (roughly) the given amount of aggregates between from and until, see getRollupBetween
+	 */
+	public List<Aggregate> getRollupWithPoints(long from, long until, int points) {
+		return getRollupBetween(from, until, Math.max(1, (until - from + points - 1) / Math.max(1, points)));
+	}
+	
+	// the coarsest rollup resolution that is at most the requested resolution and still has data for from, 0 if there is none
+	private long getRollupTier(long from, long resolution) {
+		long tier = 0;
+		long now = new Date().getTime();
+		for (long candidate : rollupResolutions) {
+			if (candidate > 0 && candidate <= resolution) {
+				long retention = provider.getPartitionIntervalProvider().getRollupRetention(id, category, candidate);
+				if (retention <= 0 || from >= now - retention) {
+					tier = candidate;
+				}
+			}
+		}
+		return tier;
+	}
+	
+	/**
+	 * Adds the points to the rollups, the aggregates are appended to a file per month for each resolution.
+	 * A bucket that spans multiple partitions simply has multiple lines, they are merged when read.
+	 */
+	private void rollup(TimeSeries.View series) throws IOException {
+		for (long resolution : rollupResolutions) {
+			if (resolution <= 0) {
+				continue;
+			}
+			Map<Long, Aggregate> buckets = new TreeMap<Long, Aggregate>();
+			aggregate(buckets, series, resolution);
+			Map<String, List<Aggregate>> files = new TreeMap<String, List<Aggregate>>();
+			for (Aggregate aggregate : buckets.values()) {
+				String name = getRollupName(new Date(aggregate.getTimestamp()));
+				if (!files.containsKey(name)) {
+					files.put(name, new ArrayList<Aggregate>());
+				}
+				files.get(name).add(aggregate);
+			}
+			ResourceContainer<?> container = ResourceUtils.mkdirs(root, ROLLUP + "/" + resolution);
+			for (Map.Entry<String, List<Aggregate>> file : files.entrySet()) {
+				ResourceManager.appendAggregates(container, file.getKey(), file.getValue());
+			}
+			long retention = provider.getPartitionIntervalProvider().getRollupRetention(id, category, resolution);
+			if (retention > 0) {
+				// the files are kept per month so we only remove a month once all of it has expired
+				Calendar calendar = Calendar.getInstance();
+				calendar.setTime(new Date(new Date().getTime() - retention));
+				calendar.set(Calendar.DAY_OF_MONTH, 1);
+				String oldest = getRollupName(calendar.getTime());
+				List<String> expired = new ArrayList<String>();
+				for (Resource resource : container) {
+					if (resource.getName().endsWith(".idx") && resource.getName().compareTo(oldest) < 0) {
+						expired.add(resource.getName());
+					}
+				}
+				for (String name : expired) {
+					((ManageableContainer<?>) container).delete(name);
+				}
+			}
+		}
+	}
+	
+	private static String getRollupName(Date date) {
+		return new SimpleDateFormat("yyyy-MM").format(date) + ".idx";
+	}
+	
+	private static void aggregate(Map<Long, Aggregate> buckets, TimeSeries.View series, long bucketMillis) {
+		for (int i = 0; i < series.size(); i++) {
+			getAggregate(buckets, getBucket(series.getTimestamp(i), bucketMillis)).push(series.getTimestamp(i), series.getValue(i));
+		}
+	}
+	
+	/**
+	 * The partitions that are still in memory, oldest first: the ones waiting to be written and the current one.
+	 * We read the current partition first: a rollover adds it to the sealing list before replacing it so we can not miss it, at worst we see it twice.
+	 */
+	private List<TimeSeries.View> getMemoryPartitions() {
+		TimeSeries current = this.current;
+		List<TimeSeries.View> partitions = new ArrayList<TimeSeries.View>();
+		for (TimeSeries partition : sealing) {
+			if (partition != current) {
+				partitions.add(partition.view());
+			}
+		}
+		partitions.add(current.view());
+		if (reorder != null) {
+			partitions.add(reorder.copy().view());
+		}
+		return partitions;
+	}
+	
+	private static Set<Long> getStarts(List<TimeSeries.View> partitions) {
+		Set<Long> starts = new HashSet<Long>();
+		for (TimeSeries.View partition : partitions) {
+			if (!partition.isEmpty()) {
+				starts.add(partition.getTimestamp(0));
+			}
+		}
+		return starts;
+	}
+	
+	private static long getStart(List<TimeSeries.View> partitions) {
+		for (TimeSeries.View partition : partitions) {
+			if (!partition.isEmpty()) {
+				return partition.getTimestamp(0);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+	
+	private static SinkSnapshot merge(List<TimeSeries.View> parts) {
+		List<TimeSeries.View> nonEmpty = new ArrayList<TimeSeries.View>();
+		int size = 0;
+		for (TimeSeries.View part : parts) {
+			if (!part.isEmpty()) {
+				nonEmpty.add(part);
+				size += part.size();
+			}
+		}
+		// no need to copy anything
+		if (nonEmpty.size() == 1) {
+			return toSnapshot(nonEmpty.get(0));
+		}
+		// copy the primitives, the sink values are only created when they are requested
+		TimeSeries merged = new TimeSeries(size);
+		for (TimeSeries.View part : nonEmpty) {
+			for (int i = 0; i < part.size(); i++) {
+				merged.add(part.getTimestamp(i), part.getValue(i));
+			}
+		}
+		return toSnapshot(merged.view());
+	}
+	
+	/**
+	 * The values of a snapshot have always been a list the caller can sort or modify, the view is copied into one the first time the values are requested.
+	 */
+	private static SinkSnapshot toSnapshot(final TimeSeries.View view) {
+		return new SinkSnapshot() {
+			private List<SinkValue> values;
+			@Override
+			public synchronized List<SinkValue> getValues() {
+				if (values == null) {
+					values = new ArrayList<SinkValue>(view);
+				}
+				return values;
+			}
+		};
+	}
+	
+	private static Set<Long> getDeltas(ResourceContainer<?> container) {
+		Set<Long> deltas = new HashSet<Long>();
+		for (Resource resource : container) {
+			if (resource.getName().endsWith(ResourceManager.DELTA)) {
+				deltas.add(Long.parseLong(resource.getName().substring(0, resource.getName().length() - ResourceManager.DELTA.length())));
+			}
+		}
+		return deltas;
+	}
+	
+	private static boolean isMerged(Resource resource) {
+		return PartitionFormat.fromName(resource.getName()).isMerged(resource.getName());
+	}
+	
+	private static long getLastTimestamp(Resource resource) {
+		return PartitionFormat.fromName(resource.getName()).getLastTimestamp(resource.getName());
+	}
+	
+	private static long getTimestamp(Resource resource) {
+		return PartitionFormat.fromName(resource.getName()).getTimestamp(resource.getName());
+	}
+	
+	private static long getBucket(long timestamp, long bucketMillis) {
+		return bucketMillis <= 0 ? 0 : timestamp - Math.floorMod(timestamp, bucketMillis);
+	}
+	
+	private static Aggregate getAggregate(Map<Long, Aggregate> buckets, long bucket) {
+		Aggregate aggregate = buckets.get(bucket);
+		if (aggregate == null) {
+			aggregate = new Aggregate(bucket);
+			buckets.put(bucket, aggregate);
+		}
+		return aggregate;
+	}
+
+	// binary partitions on a local disk are decoded straight from a mapping of the file
+	private File getMappedFile(Resource resource) {
+		return provider.isMemoryMapped() && PartitionFormat.fromName(resource.getName()) == PartitionFormat.BINARY ? MappedStorage.getFile(resource) : null;
+	}
+
+	private TimeSeries loadPartition(Resource resource) throws IOException, ParseException {
+		String key = getCacheKey(resource);
+		TimeSeries series = provider.getCache().get(key);
+		if (series == null) {
+			long started = measure();
+			File file = getMappedFile(resource);
+			series = file == null ? ResourceManager.loadSeries(resource) : MappedStorage.loadSeries(file);
+			record(DatabaseMetrics.DECODE, started);
+			// merge any points that arrived after the partition was closed, a late point that arrives in the meantime must not end up behind a cached partition
+			synchronized(deltaLock) {
+				Resource delta = resource.getParent().getChild(getTimestamp(resource) + ResourceManager.DELTA);
+				if (delta != null) {
+					series = TimeSeries.merge(series.view(), ResourceManager.loadDelta(delta).view());
+				}
+				provider.getCache().put(key, series);
+			}
+		}
+		return series;
+	}
+	
+	/**
+	 * Loads the partitions in the given order, if the provider has a query pool they are decoded in parallel on it.
+	 * If we are already running on the pool (e.g. a provider wide query), they are decoded inline.
+	 */
+	private List<TimeSeries> loadPartitions(List<Resource> resources) throws IOException, ParseException {
+		List<TimeSeries> partitions = new ArrayList<TimeSeries>();
+		ExecutorService executor = provider.getQueryExecutor();
+		if (executor == null || resources.size() < 2 || provider.isQueryThread()) {
+			for (Resource resource : resources) {
+				partitions.add(loadPartition(resource));
+			}
+		}
+		else {
+			List<Future<TimeSeries>> futures = new ArrayList<Future<TimeSeries>>();
+			for (final Resource resource : resources) {
+				futures.add(executor.submit(new Callable<TimeSeries>() {
+					@Override
+					public TimeSeries call() throws Exception {
+						return loadPartition(resource);
+					}
+				}));
+			}
+			try {
+				for (Future<TimeSeries> future : futures) {
+					partitions.add(future.get());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading partitions", e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				else if (e.getCause() instanceof ParseException) {
+					throw (ParseException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+			finally {
+				// don't keep the pool busy for a query that has already failed
+				for (Future<TimeSeries> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		return partitions;
+	}
+	
+	private String getCacheKey(Resource resource) {
+		return id + ":" + category + ":" + resource.getName();
+	}
+
+	private List<Resource> getResources(long from, long until, ResourceContainer<?> container) throws IOException {
+		TreeMap<Long, Resource> resources = new TreeMap<Long, Resource>();
+		List<Resource> merged = new ArrayList<Resource>();
+		for (Resource resource : container) {
+			String name = resource.getName();
+			PartitionFormat format = PartitionFormat.fromName(name);
+			if (format == null) {
+				continue;
+			}
+			if (format.isMerged(name)) {
+				// as with regular partitions, the binary one wins if both formats exist
+				if (format == PartitionFormat.BINARY) {
+					merged.add(resource);
+				}
+				else {
+					merged.add(0, resource);
+				}
+				continue;
+			}
+			long timestamp = format.getTimestamp(name);
+			// a partition that is being converted can temporarily exist in both formats, prefer the binary one
+			if (format == PartitionFormat.BINARY || !resources.containsKey(timestamp)) {
+				resources.put(timestamp, resource);
+			}
+		}
+		// a merged partition replaces the partitions it was built from, but only once it is complete (as marked by its summary)
+		if (!merged.isEmpty()) {
+			Map<Long, Aggregate> summaries = ResourceManager.loadSummaries(container);
+			for (Resource resource : merged) {
+				PartitionFormat format = PartitionFormat.fromName(resource.getName());
+				long first = format.getTimestamp(resource.getName()), last = format.getLastTimestamp(resource.getName());
+				Aggregate summary = summaries.get(first);
+				if (summary != null && summary.getUntil() == last) {
+					resources.subMap(first, true, last, true).clear();
+					resources.put(first, resource);
+				}
+			}
+		}
+		return new ArrayList<Resource>(resources.subMap(from, true, until, true).values());
+	}
+	
+	
+	private static SimpleDateFormat getFormatter() {
+		if (formatter.get() == null) {
+			formatter.set(new SimpleDateFormat("yyyy/MM/dd"));
+		}
+		return formatter.get();
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public SinkStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public long [] getStatisticsWindows() {
+		RollingWindow [] windows = this.windows;
+		long [] lengths = new long[windows.length];
+		for (int i = 0; i < windows.length; i++) {
+			lengths[i] = windows[i].getWindow();
+		}
+		return lengths;
+	}
+
+	@Override
+	public WindowStatistics getStatistics(long window) {
+		for (RollingWindow rolling : windows) {
+			if (rolling.getWindow() == window) {
+				return rolling.getStatistics();
+			}
+		}
+		return null;
 	}
 }
@@ -18,75 +18,309 @@
 package be.nabu.libs.metrics.database;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import be.nabu.libs.events.api.EventDispatcher;
 import be.nabu.libs.metrics.core.api.ListableSinkProvider;
+import be.nabu.libs.metrics.core.api.SinkProvider;
 import be.nabu.libs.metrics.database.api.PartitionConfigurationProvider;
 import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
 
 public class PartitionedSinkProvider implements ListableSinkProvider {
 
+	// the tag index at the time the provider was closed
+	private static final String TAG_INDEX = "tags.idx";
+
 	private ResourceContainer<?> root;
 	private PartitionConfigurationProvider partitionConfigurationProvider;
 	private ResourceContainer<?> temporary;
-	private Map<String, PartitionedSink> sinks = new HashMap<String, PartitionedSink>();
+	private ConcurrentMap<String, SinkHolder> sinks = new ConcurrentHashMap<String, SinkHolder>();
+	// by default all the sinks stay in memory once requested
+	private int maxResidentSinks;
+	private AtomicInteger resident = new AtomicInteger();
+	private AtomicLong evictedSinks = new AtomicLong();
+	private AtomicBoolean evicting = new AtomicBoolean();
+	private PartitionFormat partitionFormat = PartitionFormat.CSV;
+	// disabled by default, set a size to enable it
+	private PartitionCache cache = new PartitionCache(0);
+	// by default every push is written to the temporary buffer immediately
+	private long walFlushInterval;
+	private int walFlushSize;
+	private ScheduledExecutorService executor;
+	// by default points are pushed synchronously
+	private int ingestionBufferSize;
+	private IngestionDrainer drainer;
+	private AtomicLong ingestionFailures = new AtomicLong();
+	// by default partitions are written by the thread that closes them
+	private int rolloverThreads, rolloverQueueSize = 128;
+	private ThreadPoolExecutor rolloverExecutor;
+	// set once the provider is closed, background pools that are needed to close the sinks are not started again
+	private volatile boolean closed;
+	private AtomicLong rolloverBackpressure = new AtomicLong(), rolloverFailures = new AtomicLong();
+	// by default partitions are decoded by the thread that queries them
+	private int queryParallelism;
+	private ExecutorService queryExecutor;
+	// set on the threads of the query pool, a task on the pool must never wait for other tasks on it
+	private ThreadLocal<Boolean> queryThread = new ThreadLocal<Boolean>();
+	// by default there is no background compaction
+	private long compactionInterval;
+	private long compactionSize = 10000;
+	private ScheduledExecutorService compactionExecutor;
+	private AtomicLong compactedFiles = new AtomicLong(), reclaimedBytes = new AtomicLong(), expiredDays = new AtomicLong(), compactionFailures = new AtomicLong();
+	// by default sinks are opened one by one when they are requested and their statistics are loaded while opening
+	private int startupThreads;
+	private boolean lazyStatistics;
+	private ExecutorService startupExecutor;
+	private AtomicLong seedFailures = new AtomicLong();
+	// binary partitions on a local disk are mapped into memory, temporary buffers only if a segment size is set
+	private boolean memoryMapped;
+	private int mappedSegmentSize;
+	// by default the database does not measure itself
+	private boolean instrumented;
+	private DatabaseMetrics metrics = new DatabaseMetrics();
+	private long metricsInterval;
+	private SinkProvider metricsProvider;
+	private String metricsId = "metrics-database";
+	private EventDispatcher eventDispatcher;
+	private ScheduledExecutorService metricsExecutor;
+	// the live subscriptions, their points are delivered by a single thread unless configured otherwise
+	private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private int subscriptionThreads = 1;
+	private ScheduledExecutorService subscriptionExecutor;
+	// by default changed tags are written after a second so a burst of changes results in a single write
+	private long tagFlushDelay = 1000;
+	private ScheduledExecutorService tagExecutor;
+	// tag key > tag value > the sinks ("<id>/<category>") that have it, built the first time it is needed
+	private volatile Map<String, Map<String, Set<String>>> tagIndex;
+	private Object tagIndexLock = new Object();
+	// set when a tag changes while the index is not loaded, a saved index is then outdated, guarded by the tag index lock
+	private boolean tagIndexOutdated;
+	// by default an export copies one file at a time, while an export is running the partitions are not merged or expired
+	private int exportThreads;
+	private AtomicInteger exports = new AtomicInteger();
 
 	public PartitionedSinkProvider(PartitionConfigurationProvider partitionConfigurationProvider, ResourceContainer<?> root, ResourceContainer<?> temporary) {
 		this.partitionConfigurationProvider = partitionConfigurationProvider;
 		this.root = root;
 		this.temporary = temporary;
+		this.memoryMapped = MappedStorage.getFile(root) != null;
 	}
 	
 	@Override
 	public PartitionedSink getSink(String id, String category) {
+		String key = id + ":" + category;
+		SinkHolder holder = sinks.get(key);
+		if (holder == null) {
+			holder = new SinkHolder(id, category);
+			SinkHolder existing = sinks.putIfAbsent(key, holder);
+			if (existing != null) {
+				holder = existing;
+			}
+		}
+		return holder.get();
+	}
+	
+	private PartitionedSink newSink(String id, String category) throws IOException, ParseException {
+		return new PartitionedSink(
+			this, 
+			id,
+			category, 
+			getRootFor(id, category), 
+			partitionConfigurationProvider.getPartitionInterval(id, category), 
+			partitionConfigurationProvider.getPartitionSize(id, category)
+		);
+	}
+	
+	/**
+	 * Opens all the sinks that exist in the root, this recovers their temporary buffers so they are ready before the first point is pushed.
+	 * If startup threads are configured, the sinks are opened in parallel. This should be called before the sinks are used.
+	 */
+	public void open() {
+		ExecutorService executor = startupThreads > 1 ? Executors.newFixedThreadPool(startupThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-database-open");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : null;
 		try {
-			String key = id + ":" + category;
-			if (!sinks.containsKey(key)) {
-				synchronized(this) {
-					if (!sinks.containsKey(id + ":" + category)) {
-						sinks.put(key, new PartitionedSink(
-							this, 
-							id,
-							category, 
-							getRootFor(id, category), 
-							partitionConfigurationProvider.getPartitionInterval(id, category), 
-							partitionConfigurationProvider.getPartitionSize(id, category)
-						));
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (Map.Entry<String, List<String>> entry : getSinks().entrySet()) {
+				for (final String category : entry.getValue()) {
+					final String id = entry.getKey();
+					Runnable runnable = new Runnable() {
+						@Override
+						public void run() {
+							getSink(id, category);
+						}
+					};
+					if (executor == null) {
+						runnable.run();
+					}
+					else {
+						futures.add(executor.submit(runnable));
 					}
 				}
 			}
-			return sinks.get(key);
+			for (Future<?> future : futures) {
+				future.get();
+			}
 		}
-		catch (IOException e) {
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			throw new RuntimeException(e);
 		}
-		catch (ParseException e) {
-			throw new RuntimeException(e);
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
 		}
 	}
 
 	private ResourceContainer<?> getRootFor(String id, String category) {
 		try {
-			ResourceContainer<?> child = (ResourceContainer<?>) root.getChild(id);
-			if (child == null) {
-				child = (ResourceContainer<?>) ((ManageableContainer<?>) root).create(id, Resource.CONTENT_TYPE_DIRECTORY);
-			}
-			ResourceContainer<?> target = (ResourceContainer<?>) child.getChild(category);
-			if (target == null) {
-				target = (ResourceContainer<?>) ((ManageableContainer<?>) child).create(category, Resource.CONTENT_TYPE_DIRECTORY);
-			}
-			return target;
+			return getOrCreate(getOrCreate(root, id), category);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	// sinks are created concurrently so another thread may have created the directory in the meantime
+	private static ResourceContainer<?> getOrCreate(ResourceContainer<?> parent, String name) throws IOException {
+		Resource child = parent.getChild(name);
+		if (child == null) {
+			try {
+				child = ((ManageableContainer<?>) parent).create(name, Resource.CONTENT_TYPE_DIRECTORY);
+			}
+			catch (IOException e) {
+				child = parent.getChild(name);
+				if (child == null) {
+					throw e;
+				}
+			}
+		}
+		return (ResourceContainer<?>) child;
+	}
+	
+	// the sinks that are currently in memory
+	private List<PartitionedSink> getResidentSinks() {
+		List<PartitionedSink> resident = new ArrayList<PartitionedSink>();
+		for (SinkHolder holder : sinks.values()) {
+			PartitionedSink sink = holder.sink;
+			if (sink != null) {
+				resident.add(sink);
+			}
+		}
+		return resident;
+	}
+
+	public int getMaxResidentSinks() {
+		return maxResidentSinks;
+	}
+
+	/**
+	 * When set, at most this many sinks are kept in memory. Once exceeded, the sinks that were requested least recently are closed which writes their state to disk.
+	 * An evicted sink is opened again the next time it is requested, so sinks should always be requested from the provider rather than kept around.
+	 */
+	public void setMaxResidentSinks(int maxResidentSinks) {
+		this.maxResidentSinks = maxResidentSinks;
+	}
+
+	// the amount of sinks that are currently in memory
+	public int getResidentSinkCount() {
+		return resident.get();
+	}
+
+	// the amount of sinks that were closed to stay within the maximum
+	public long getEvictedSinkCount() {
+		return evictedSinks.get();
+	}
+
+	private void evictIfNeeded() {
+		if (maxResidentSinks <= 0 || resident.get() <= maxResidentSinks) {
+			return;
+		}
+		// only one thread evicts, the others can continue creating sinks
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<SinkHolder> candidates = new ArrayList<SinkHolder>();
+			for (SinkHolder holder : sinks.values()) {
+				if (holder.sink != null) {
+					candidates.add(holder);
+				}
+			}
+			Collections.sort(candidates, new Comparator<SinkHolder>() {
+				@Override
+				public int compare(SinkHolder o1, SinkHolder o2) {
+					return Long.compare(o1.lastAccess, o2.lastAccess);
+				}
+			});
+			// evict a bit more than needed so we don't have to sort all the sinks for every new one
+			int target = maxResidentSinks - maxResidentSinks / 10;
+			for (SinkHolder holder : candidates) {
+				if (resident.get() <= target) {
+					break;
+				}
+				// a sink that can not be written stays in use
+				try {
+					holder.evict();
+				}
+				catch (RuntimeException e) {
+					continue;
+				}
+			}
+		}
+		finally {
+			evicting.set(false);
+		}
+	}
 
 	public ResourceContainer<?> getRoot() {
 		return root;
@@ -100,6 +334,959 @@ public class PartitionedSinkProvider implements ListableSinkProvider {
 		return temporary;
 	}
 
+	public PartitionFormat getPartitionFormat() {
+		return partitionFormat;
+	}
+
+	public void setPartitionFormat(PartitionFormat partitionFormat) {
+		this.partitionFormat = partitionFormat;
+	}
+
+	public PartitionCache getCache() {
+		return cache;
+	}
+
+	public void setCacheSize(long cacheSize) {
+		cache.setMaximumSize(cacheSize);
+	}
+
+	public long getWalFlushInterval() {
+		return walFlushInterval;
+	}
+
+	/**
+	 * Flush the temporary buffers of all sinks at this interval (in ms). Must be set before the first sink is requested.
+	 */
+	public void setWalFlushInterval(long walFlushInterval) {
+		this.walFlushInterval = walFlushInterval;
+	}
+
+	public int getWalFlushSize() {
+		return walFlushSize;
+	}
+
+	/**
+	 * Flush the temporary buffer of a sink in the background once this many points are pending. Must be set before the first sink is requested.
+	 */
+	public void setWalFlushSize(int walFlushSize) {
+		this.walFlushSize = walFlushSize;
+	}
+
+	public int getIngestionBufferSize() {
+		return ingestionBufferSize;
+	}
+
+	/**
+	 * When set, every sink gets a lock-free buffer of this size that producers push into, a single background thread moves the points into the partitions.
+	 * Must be set before the first sink is requested.
+	 */
+	public void setIngestionBufferSize(int ingestionBufferSize) {
+		this.ingestionBufferSize = ingestionBufferSize;
+	}
+
+	synchronized IngestionDrainer getDrainer() {
+		if (drainer == null) {
+			drainer = new IngestionDrainer(ingestionFailures);
+		}
+		return drainer;
+	}
+
+	AtomicLong getIngestionFailures() {
+		return ingestionFailures;
+	}
+
+	// the amount of points from the ingestion buffers that could not be added because of an error (e.g. writing the temporary buffer)
+	public long getIngestionFailureCount() {
+		return ingestionFailures.get();
+	}
+
+	public int getRolloverThreads() {
+		return rolloverThreads;
+	}
+
+	/**
+	 * When set, closed partitions are compressed and written by this many background threads, until then they remain queryable from memory.
+	 * Must be set before the first sink is requested.
+	 */
+	public void setRolloverThreads(int rolloverThreads) {
+		this.rolloverThreads = rolloverThreads;
+	}
+
+	public int getRolloverQueueSize() {
+		return rolloverQueueSize;
+	}
+
+	/**
+	 * The maximum amount of closed partitions waiting to be written, once full the thread that closes a partition will write it itself.
+	 */
+	public void setRolloverQueueSize(int rolloverQueueSize) {
+		this.rolloverQueueSize = rolloverQueueSize;
+	}
+
+	// once the provider is closing no new pool is started, the sinks write their partitions themselves
+	synchronized Executor getRolloverExecutor() {
+		if (rolloverExecutor == null && rolloverThreads > 0 && !closed) {
+			rolloverExecutor = new ThreadPoolExecutor(rolloverThreads, rolloverThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(rolloverQueueSize), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-rollover");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+					// apply backpressure by running it in the calling thread
+					rolloverBackpressure.incrementAndGet();
+					runnable.run();
+				}
+			});
+		}
+		return rolloverExecutor;
+	}
+
+	// the amount of closed partitions waiting to be written
+	public int getRolloverQueueDepth() {
+		ThreadPoolExecutor rolloverExecutor = this.rolloverExecutor;
+		return rolloverExecutor == null ? 0 : rolloverExecutor.getQueue().size();
+	}
+
+	// the amount of times a partition was written by the closing thread because the queue was full
+	public long getRolloverBackpressure() {
+		return rolloverBackpressure.get();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	AtomicLong getRolloverFailures() {
+		return rolloverFailures;
+	}
+
+	// the amount of background writes that failed, the partitions are kept in memory and retried on the next rollover or flush
+	public long getRolloverFailureCount() {
+		return rolloverFailures.get();
+	}
+
+	public int getQueryParallelism() {
+		return queryParallelism;
+	}
+
+	/**
+	 * When set, queries that span multiple partitions decode them on a shared pool of this many threads.
+	 * The pool is shared by all sinks so a large query can never use more threads than this, regardless of how many partitions it touches.
+	 */
+	public void setQueryParallelism(int queryParallelism) {
+		this.queryParallelism = queryParallelism;
+	}
+
+	synchronized ExecutorService getQueryExecutor() {
+		if (queryExecutor == null && queryParallelism > 1) {
+			queryExecutor = Executors.newFixedThreadPool(queryParallelism, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							queryThread.set(true);
+							runnable.run();
+						}
+					}, "metrics-database-query");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return queryExecutor;
+	}
+
+	/**
+	 * Whether the current thread belongs to the query pool, work that is done there (e.g. opening a sink or decoding its partitions) has to be done inline.
+	 * With a bounded pool, tasks that wait for tasks they submitted to the same pool deadlock once every thread is waiting.
+	 */
+	boolean isQueryThread() {
+		return Boolean.TRUE.equals(queryThread.get());
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Enabled by default if the root is a local directory, the binary partitions are then decoded from a mapping of the file.
+	 * The temporary buffers are only written through a mapped segment if a segment size is set as well. Must be set before the first sink is requested.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public int getMappedSegmentSize() {
+		return mappedSegmentSize;
+	}
+
+	/**
+	 * When set (and memory mapping is enabled), local temporary buffers are written through a mapped segment that grows in steps of this many bytes, 1MB is a good start.
+	 * Every resident sink keeps its segment mapped, with many sinks this can run into the limit on mappings of the operating system (vm.max_map_count on linux) so bound them with the maximum resident sinks.
+	 * Note that the file is grown ahead of the data and is only truncated when the sink is closed. After an unclean shutdown it ends in zeros, these are removed when the sink is opened again. Every flush forces the mapped content to disk.
+	 * Disabled by default.
+	 */
+	public void setMappedSegmentSize(int mappedSegmentSize) {
+		this.mappedSegmentSize = mappedSegmentSize;
+	}
+
+	public boolean isInstrumented() {
+		return instrumented;
+	}
+
+	/**
+	 * When set, the database measures its own costs, see DatabaseMetrics for what is measured
+	 */
+	public void setInstrumented(boolean instrumented) {
+		this.instrumented = instrumented;
+	}
+
+	public DatabaseMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * When set, the measurements are published at this interval (in ms). Must be set before the first sink is requested.
+	 */
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
+	}
+
+	public SinkProvider getMetricsProvider() {
+		return metricsProvider;
+	}
+
+	/**
+	 * The provider the measurements are published to, by default they are stored in this database
+	 */
+	public void setMetricsProvider(SinkProvider metricsProvider) {
+		this.metricsProvider = metricsProvider;
+	}
+
+	public String getMetricsId() {
+		return metricsId;
+	}
+
+	// the id of the sinks the measurements are published to
+	public void setMetricsId(String metricsId) {
+		this.metricsId = metricsId;
+	}
+
+	public EventDispatcher getEventDispatcher() {
+		return eventDispatcher;
+	}
+
+	/**
+	 * If set, a MetricsEvent is fired every time the measurements are published
+	 */
+	public void setEventDispatcher(EventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+	}
+
+	synchronized void startMetrics() {
+		if (metricsExecutor == null && metricsInterval > 0) {
+			metricsExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-metrics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			metricsExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					publishMetrics();
+				}
+			}, metricsInterval, metricsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Publishes the measurements since the previous publish to the metrics provider and the event dispatcher
+	 */
+	public void publishMetrics() {
+		long timestamp = new Date().getTime();
+		List<Instrument.Snapshot> measurements = metrics.publish(metricsProvider == null ? this : metricsProvider, metricsId, timestamp);
+		if (eventDispatcher != null) {
+			eventDispatcher.fire(new MetricsEvent(metricsId, timestamp, measurements), this);
+		}
+	}
+
+	/**
+	 * Delivers the points that are added to the sinks with an id that matches the pattern (a regular expression) and the category (null for all categories) to the listener.
+	 * This includes sinks that are created after subscribing. If an interval is given, the points are aggregated per interval, see Subscription.
+	 * Every sink keeps at most the given capacity of undelivered points (or aggregates) for the listener, the policy decides what happens with the rest.
+	 */
+	public Subscription subscribe(String idPattern, String category, SubscriptionListener listener, long interval, int capacity, OverflowPolicy policy) {
+		Subscription subscription = new Subscription(this, Pattern.compile(idPattern), category, listener, interval, capacity, policy);
+		subscriptions.add(subscription);
+		for (PartitionedSink sink : getResidentSinks()) {
+			if (subscription.matches(sink.getId(), sink.getCategory())) {
+				sink.attach(subscription);
+			}
+		}
+		return subscription;
+	}
+
+	void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription);
+		for (PartitionedSink sink : getResidentSinks()) {
+			sink.detach(subscription);
+		}
+	}
+
+	public int getSubscriptionThreads() {
+		return subscriptionThreads;
+	}
+
+	/**
+	 * The amount of threads that deliver the points to the subscriptions, a single subscription is never delivered to concurrently
+	 */
+	public void setSubscriptionThreads(int subscriptionThreads) {
+		this.subscriptionThreads = subscriptionThreads;
+	}
+
+	// it also runs the timers that deliver the buckets of the subscriptions that no longer get points
+	synchronized ScheduledExecutorService getSubscriptionExecutor() {
+		if (subscriptionExecutor == null) {
+			subscriptionExecutor = Executors.newScheduledThreadPool(Math.max(1, subscriptionThreads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-subscription");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return subscriptionExecutor;
+	}
+
+	public long getTagFlushDelay() {
+		return tagFlushDelay;
+	}
+
+	/**
+	 * How long (in ms) to wait before changed tags are written, 0 writes them immediately. Pending tags are always written when a sink is flushed or closed.
+	 */
+	public void setTagFlushDelay(long tagFlushDelay) {
+		this.tagFlushDelay = tagFlushDelay;
+	}
+
+	synchronized ScheduledExecutorService getTagExecutor() {
+		if (tagExecutor == null) {
+			tagExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-tags");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return tagExecutor;
+	}
+
+	/**
+	 * The sinks that have a tag with the given value (or with any value if the value is null), grouped per id like getSinks.
+	 * The first lookup builds an index of the tags of all the sinks, afterwards it is kept up to date as tags change and it is saved when the provider is closed so the next lookup does not have to read the tags of every sink.
+	 */
+	public Map<String, List<String>> getSinksByTag(String key, String value) {
+		Map<String, List<String>> sinks = new HashMap<String, List<String>>();
+		Map<String, Set<String>> values = getTagIndex().get(key);
+		if (values != null) {
+			for (Map.Entry<String, Set<String>> entry : values.entrySet()) {
+				if (value == null || value.equals(entry.getKey())) {
+					for (String sink : entry.getValue()) {
+						int index = sink.indexOf('/');
+						String id = sink.substring(0, index);
+						List<String> categories = sinks.get(id);
+						if (categories == null) {
+							categories = new ArrayList<String>();
+							sinks.put(id, categories);
+						}
+						categories.add(sink.substring(index + 1));
+					}
+				}
+			}
+		}
+		return sinks;
+	}
+
+	/**
+	 * Keeps the tag index up to date. If it is not loaded, a saved index no longer matches the tags once they change so it is removed and the next lookup rebuilds it.
+	 */
+	void updateTagIndex(String id, String category, String key, String previous, String value) {
+		synchronized(tagIndexLock) {
+			if (tagIndex == null) {
+				if (!tagIndexOutdated) {
+					tagIndexOutdated = true;
+					// removed right away in case we are not closed properly
+					try {
+						discardTagIndex();
+					}
+					// it is no longer loaded either way, we try again when we are closed
+					catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+			else {
+				String sink = id + "/" + category;
+				if (previous != null) {
+					Map<String, Set<String>> values = tagIndex.get(key);
+					if (values != null && values.containsKey(previous)) {
+						values.get(previous).remove(sink);
+					}
+				}
+				if (value != null) {
+					index(tagIndex, sink, key, value);
+				}
+			}
+		}
+	}
+
+	private Map<String, Map<String, Set<String>>> getTagIndex() {
+		if (tagIndex == null) {
+			synchronized(tagIndexLock) {
+				if (tagIndex == null) {
+					try {
+						Map<String, Map<String, Set<String>>> index = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+						if (tagIndexOutdated || !loadTagIndex(index)) {
+							for (Map.Entry<String, List<String>> entry : getSinks().entrySet()) {
+								for (String category : entry.getValue()) {
+									Map<String, String> tags = PartitionedSink.loadTags(getRootFor(entry.getKey(), category));
+									for (Map.Entry<String, String> tag : tags.entrySet()) {
+										index(index, entry.getKey() + "/" + category, tag.getKey(), tag.getValue());
+									}
+								}
+							}
+						}
+						// the sinks in memory can have changes that are not written yet
+						for (PartitionedSink sink : getResidentSinks()) {
+							Map<String, String> tags = sink.getLoadedTags();
+							if (tags != null) {
+								String name = sink.getId() + "/" + sink.getCategory();
+								for (Map<String, Set<String>> values : index.values()) {
+									for (Set<String> sinks : values.values()) {
+										sinks.remove(name);
+									}
+								}
+								for (Map.Entry<String, String> tag : tags.entrySet()) {
+									index(index, name, tag.getKey(), tag.getValue());
+								}
+							}
+						}
+						tagIndex = index;
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+		return tagIndex;
+	}
+
+	private static void index(Map<String, Map<String, Set<String>>> index, String sink, String key, String value) {
+		Map<String, Set<String>> values = index.get(key);
+		if (values == null) {
+			values = new ConcurrentHashMap<String, Set<String>>();
+			index.put(key, values);
+		}
+		Set<String> sinks = values.get(value);
+		if (sinks == null) {
+			sinks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			values.put(value, sinks);
+		}
+		sinks.add(sink);
+	}
+
+	// the saved index is removed once it is loaded, if the provider is not closed properly the index is rebuilt from the tags of the sinks
+	private boolean loadTagIndex(Map<String, Map<String, Set<String>>> index) throws IOException {
+		Resource child = root.getChild(TAG_INDEX);
+		if (!(child instanceof ReadableResource)) {
+			return false;
+		}
+		Properties properties = new Properties();
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable();
+		try {
+			properties.load(IOUtils.toInputStream(readable));
+		}
+		finally {
+			readable.close();
+		}
+		// the keys are "<id>/<category>/<tag>", ids and categories are directory names so they do not contain a slash
+		for (String key : properties.stringPropertyNames()) {
+			int separator = key.indexOf('/', key.indexOf('/') + 1);
+			index(index, key.substring(0, separator), key.substring(separator + 1), properties.getProperty(key));
+		}
+		discardTagIndex();
+		return true;
+	}
+
+	private void discardTagIndex() throws IOException {
+		if (root.getChild(TAG_INDEX) != null) {
+			((ManageableContainer<?>) root).delete(TAG_INDEX);
+		}
+	}
+
+	private void saveTagIndex() throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Map<String, Set<String>>> tag : tagIndex.entrySet()) {
+			for (Map.Entry<String, Set<String>> value : tag.getValue().entrySet()) {
+				for (String sink : value.getValue()) {
+					properties.setProperty(sink + "/" + tag.getKey(), value.getKey());
+				}
+			}
+		}
+		Resource child = root.getChild(TAG_INDEX);
+		if (child == null) {
+			child = ((ManageableContainer<?>) root).create(TAG_INDEX, "text/plain");
+		}
+		WritableContainer<ByteBuffer> writable = ((WritableResource) child).getWritable();
+		try {
+			properties.store(IOUtils.toOutputStream(writable, true), "");
+		}
+		finally {
+			writable.close();
+		}
+	}
+
+	public int getStartupThreads() {
+		return startupThreads;
+	}
+
+	/**
+	 * The amount of threads used to open the existing sinks in open()
+	 */
+	public void setStartupThreads(int startupThreads) {
+		this.startupThreads = startupThreads;
+	}
+
+	/**
+	 * Exports the database into the given container while it is in use, every sink is exported as it was at the moment it was captured.
+	 * The sinks end up in "root" and their captured temporary buffers in "temporary", a provider opened on those has the exported points.
+	 * If a previous manifest is given, the files that still have the same size are not copied again if the container already has them (e.g. it holds the previous export).
+	 * The files are always copied, never linked, so the export does not change when the database does. The new manifest lists all the files of the export.
+	 */
+	public ExportManifest export(ResourceContainer<?> target, ExportManifest previous) {
+		return export(new Exporter.ContainerTarget(target), previous);
+	}
+
+	/**
+	 * Exports the database as a zip archive, the output stream is not closed.
+	 * If a previous manifest is given, the archive only contains the files that changed since and has to be restored on top of the archives of the previous exports.
+	 */
+	public ExportManifest export(OutputStream output, ExportManifest previous) {
+		return export(new Exporter.ArchiveTarget(output), previous);
+	}
+
+	private ExportManifest export(Exporter.Target target, ExportManifest previous) {
+		exports.incrementAndGet();
+		try {
+			return new Exporter(this, target, previous).export(exportThreads);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			exports.decrementAndGet();
+		}
+	}
+
+	// partitions must not be merged or removed while an export is copying them
+	boolean isExporting() {
+		return exports.get() > 0;
+	}
+
+	public int getExportThreads() {
+		return exportThreads;
+	}
+
+	/**
+	 * The amount of threads used to capture the sinks and copy their files during an export
+	 */
+	public void setExportThreads(int exportThreads) {
+		this.exportThreads = exportThreads;
+	}
+
+	public boolean isLazyStatistics() {
+		return lazyStatistics;
+	}
+
+	/**
+	 * When set, the last values of a sink are loaded in the background so opening the sink does not have to wait for it.
+	 * Until then the statistics of the sink only contain the points that were pushed since. Must be set before the first sink is requested.
+	 */
+	public void setLazyStatistics(boolean lazyStatistics) {
+		this.lazyStatistics = lazyStatistics;
+	}
+
+	AtomicLong getSeedFailures() {
+		return seedFailures;
+	}
+
+	// the amount of sinks whose statistics could not be loaded in the background, they only contain the points pushed since the sink was opened
+	public long getSeedFailureCount() {
+		return seedFailures.get();
+	}
+
+	synchronized ExecutorService getStartupExecutor() {
+		if (startupExecutor == null && lazyStatistics) {
+			startupExecutor = Executors.newFixedThreadPool(Math.max(1, startupThreads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-startup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return startupExecutor;
+	}
+
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * When set, all sinks are compacted at this interval (in ms) in the background. Must be set before the first sink is requested.
+	 */
+	public void setCompactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	public long getCompactionSize() {
+		return compactionSize;
+	}
+
+	/**
+	 * Adjacent partitions are merged as long as the result does not exceed this amount of points
+	 */
+	public void setCompactionSize(long compactionSize) {
+		this.compactionSize = compactionSize;
+	}
+
+	synchronized void startCompaction() {
+		if (compactionExecutor == null && compactionInterval > 0) {
+			compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database-compaction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					compact();
+				}
+			}, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Compacts all the sinks that are in memory
+	 */
+	public void compact() {
+		for (PartitionedSink sink : getResidentSinks()) {
+			// a failing sink should not stop the compaction of the others
+			try {
+				long started = System.nanoTime();
+				sink.compact();
+				if (instrumented) {
+					metrics.getInstrument(DatabaseMetrics.COMPACTION).record(System.nanoTime() - started);
+				}
+			}
+			catch (RuntimeException e) {
+				compactionFailures.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the partitions of all the sinks into the given format, this goes through the sinks so they can stay in use.
+	 * Set the partition format as well for the partitions that are written afterwards.
+	 */
+	public int convert(PartitionFormat target) {
+		int converted = 0;
+		for (Map.Entry<String, List<String>> entry : getSinks().entrySet()) {
+			for (String category : entry.getValue()) {
+				converted += getSink(entry.getKey(), category).convert(target);
+			}
+		}
+		return converted;
+	}
+
+	AtomicLong getCompactedFiles() {
+		return compactedFiles;
+	}
+
+	AtomicLong getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	AtomicLong getExpiredDays() {
+		return expiredDays;
+	}
+
+	// the amount of partitions that were merged into larger ones
+	public long getCompactedFileCount() {
+		return compactedFiles.get();
+	}
+
+	// the amount of bytes freed by compaction and retention
+	public long getReclaimedByteCount() {
+		return reclaimedBytes.get();
+	}
+
+	// the amount of day directories removed because of the retention
+	public long getExpiredDayCount() {
+		return expiredDays.get();
+	}
+
+	// the amount of times the compaction of a sink failed
+	public long getCompactionFailureCount() {
+		return compactionFailures.get();
+	}
+
+	// the executor is only needed if we do not flush synchronously
+	synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null && (walFlushInterval > 0 || walFlushSize > 1)) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-database");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			if (walFlushInterval > 0) {
+				executor.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				}, walFlushInterval, walFlushInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Writes all pending points to the partitions and temporary buffers
+	 */
+	public void flush() {
+		for (PartitionedSink sink : getResidentSinks()) {
+			sink.flush();
+		}
+	}
+
+	/**
+	 * Writes all pending points and waits for all closed partitions to be written, afterwards the background threads are stopped.
+	 */
+	public void close() {
+		ExecutorService startupExecutor;
+		synchronized(this) {
+			closed = true;
+			startupExecutor = this.startupExecutor;
+			this.startupExecutor = null;
+			if (metricsExecutor != null) {
+				metricsExecutor.shutdown();
+				metricsExecutor = null;
+			}
+		}
+		// a pending load would remove the window the sinks save when they close
+		if (startupExecutor != null) {
+			startupExecutor.shutdown();
+			try {
+				startupExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		ScheduledExecutorService compactionExecutor;
+		synchronized(this) {
+			compactionExecutor = this.compactionExecutor;
+			this.compactionExecutor = null;
+		}
+		// let a running compaction finish, it holds the write lock of a sink
+		if (compactionExecutor != null) {
+			compactionExecutor.shutdown();
+			try {
+				compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+		ThreadPoolExecutor rolloverExecutor;
+		synchronized(this) {
+			rolloverExecutor = this.rolloverExecutor;
+			this.rolloverExecutor = null;
+		}
+		if (rolloverExecutor != null) {
+			rolloverExecutor.shutdown();
+			try {
+				rolloverExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (PartitionedSink sink : getResidentSinks()) {
+			sink.close();
+		}
+		// the sinks have written their tags, the index is saved so it does not have to be rebuilt
+		synchronized(tagIndexLock) {
+			try {
+				if (tagIndex != null) {
+					saveTagIndex();
+					tagIndex = null;
+				}
+				else if (tagIndexOutdated) {
+					discardTagIndex();
+				}
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		// the points that were added while closing are still delivered, as are the buckets that are being aggregated
+		for (Subscription subscription : subscriptions) {
+			subscription.expire(true);
+			subscription.deliver();
+		}
+		synchronized(this) {
+			if (subscriptionExecutor != null) {
+				subscriptionExecutor.shutdown();
+				subscriptionExecutor = null;
+			}
+			if (tagExecutor != null) {
+				tagExecutor.shutdown();
+				tagExecutor = null;
+			}
+			if (drainer != null) {
+				drainer.stop();
+				drainer = null;
+			}
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+			if (queryExecutor != null) {
+				queryExecutor.shutdown();
+				queryExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * Aggregates a category over all the sinks with an id that matches the pattern (a regular expression), see PartitionedSink.getRollupBetween for the buckets.
+	 * If a query parallelism is configured, the sinks are queried in parallel and their buckets are merged as they come in, so the points themselves are never combined in memory.
+	 */
+	public QueryResult query(String idPattern, final String category, final long from, final long until, final long bucketMillis, Aggregation aggregation) {
+		Pattern pattern = Pattern.compile(idPattern);
+		List<String> ids = new ArrayList<String>();
+		for (Map.Entry<String, List<String>> entry : getSinks().entrySet()) {
+			if (entry.getValue().contains(category) && pattern.matcher(entry.getKey()).matches()) {
+				ids.add(entry.getKey());
+			}
+		}
+		Map<Long, Aggregate> buckets = new TreeMap<Long, Aggregate>();
+		Map<Long, Double> totals = new HashMap<Long, Double>();
+		// the sinks decode their partitions inline when they are opened or queried on the query pool
+		ExecutorService executor = getQueryExecutor();
+		if (executor == null || ids.size() <= 1 || isQueryThread()) {
+			for (String id : ids) {
+				merge(buckets, totals, getSink(id, category).getRollupBetween(from, until, bucketMillis));
+			}
+		}
+		else {
+			CompletionService<List<Aggregate>> completion = new ExecutorCompletionService<List<Aggregate>>(executor);
+			List<Future<List<Aggregate>>> futures = new ArrayList<Future<List<Aggregate>>>();
+			for (final String id : ids) {
+				futures.add(completion.submit(new Callable<List<Aggregate>>() {
+					@Override
+					public List<Aggregate> call() throws Exception {
+						return getSink(id, category).getRollupBetween(from, until, bucketMillis);
+					}
+				}));
+			}
+			try {
+				for (int i = 0; i < futures.size(); i++) {
+					merge(buckets, totals, completion.take().get());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			finally {
+				for (Future<List<Aggregate>> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		long [] timestamps = new long[buckets.size()];
+		double [] values = new double[buckets.size()];
+		int index = 0;
+		for (Aggregate bucket : buckets.values()) {
+			timestamps[index] = bucket.getTimestamp();
+			switch (aggregation) {
+				case SUM:
+					values[index] = bucket.getSum();
+				break;
+				case AVERAGE:
+					values[index] = bucket.getAverage();
+				break;
+				case MINIMUM:
+					values[index] = bucket.getMinimum();
+				break;
+				case MAXIMUM:
+					values[index] = bucket.getMaximum();
+				break;
+				case COUNT:
+					values[index] = bucket.getCount();
+				break;
+				case TOTAL:
+					values[index] = totals.get(bucket.getTimestamp());
+				break;
+			}
+			index++;
+		}
+		return new QueryResult(timestamps, values, ids.size());
+	}
+
+	private static void merge(Map<Long, Aggregate> buckets, Map<Long, Double> totals, List<Aggregate> aggregates) {
+		for (Aggregate aggregate : aggregates) {
+			Aggregate bucket = buckets.get(aggregate.getTimestamp());
+			if (bucket == null) {
+				bucket = new Aggregate(aggregate.getTimestamp());
+				buckets.put(aggregate.getTimestamp(), bucket);
+				totals.put(aggregate.getTimestamp(), 0d);
+			}
+			bucket.merge(aggregate);
+			totals.put(aggregate.getTimestamp(), totals.get(aggregate.getTimestamp()) + aggregate.getAverage());
+		}
+	}
+
 	@Override
 	public Map<String, List<String>> getSinks() {
 		Map<String, List<String>> sinks = new HashMap<String, List<String>>();
@@ -119,4 +1306,79 @@ public class PartitionedSinkProvider implements ListableSinkProvider {
 		}
 		return sinks;
 	}
+
+	/**
+	 * Makes sure a sink is created exactly once, without blocking the creation of other sinks
+	 */
+	private class SinkHolder {
+		private String id, category;
+		private volatile PartitionedSink sink;
+		private volatile long lastAccess;
+
+		SinkHolder(String id, String category) {
+			this.id = id;
+			this.category = category;
+		}
+
+		PartitionedSink get() {
+			lastAccess = System.currentTimeMillis();
+			PartitionedSink sink = this.sink;
+			if (sink == null) {
+				boolean created = false;
+				synchronized(this) {
+					sink = this.sink;
+					if (sink == null) {
+						long started = instrumented ? System.nanoTime() : 0;
+						try {
+							sink = newSink(id, category);
+						}
+						catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						catch (ParseException e) {
+							throw new RuntimeException(e);
+						}
+						if (instrumented) {
+							metrics.getInstrument(DatabaseMetrics.OPEN).record(System.nanoTime() - started);
+						}
+						this.sink = sink;
+						resident.incrementAndGet();
+						created = true;
+					}
+				}
+				if (created) {
+					// a subscription that is added in the meantime finds the sink among the resident ones
+					for (Subscription subscription : subscriptions) {
+						if (subscription.matches(id, category)) {
+							sink.attach(subscription);
+						}
+					}
+					startCompaction();
+					startMetrics();
+					evictIfNeeded();
+				}
+			}
+			return sink;
+		}
+
+		/**
+		 * Writes the state of the sink to disk and drops it from memory. The sink can still be in use elsewhere, once closed it hands new points to the sink that replaces it.
+		 * A request for the sink waits until it is fully closed, otherwise the new instance could recover a temporary buffer that is still being written.
+		 */
+		synchronized void evict() {
+			PartitionedSink sink = this.sink;
+			if (sink != null) {
+				this.sink = null;
+				try {
+					sink.close();
+				}
+				catch (RuntimeException e) {
+					this.sink = sink;
+					throw e;
+				}
+				resident.decrementAndGet();
+				evictedSinks.incrementAndGet();
+			}
+		}
+	}
 }
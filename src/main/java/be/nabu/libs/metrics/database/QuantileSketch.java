@@ -0,0 +1,185 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * A mergeable histogram to estimate quantiles. Like an HDR histogram, every value is counted in a bucket that keeps its 7 most significant bits, the estimate is off by less than 1%.
+ * The buckets are kept sparse and sorted, the values of a metric tend to be in a narrow range so a sketch usually only has a few dozen buckets.
+ */
+public class QuantileSketch {
+
+	private static final int PRECISION = 7, HALF = 1 << (PRECISION - 1);
+
+	// negative values have negative keys, the order of the keys is the order of the values
+	private int [] keys;
+	private long [] counts;
+	private int size;
+	private long count;
+
+	public QuantileSketch() {
+		this(8);
+	}
+
+	private QuantileSketch(int capacity) {
+		this.keys = new int[Math.max(1, capacity)];
+		this.counts = new long[keys.length];
+	}
+
+	public void push(long value) {
+		int key = getKey(value);
+		int position = Arrays.binarySearch(keys, 0, size, key);
+		if (position < 0) {
+			position = -position - 1;
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			System.arraycopy(keys, position, keys, position + 1, size - position);
+			System.arraycopy(counts, position, counts, position + 1, size - position);
+			keys[position] = key;
+			counts[position] = 0;
+			size++;
+		}
+		counts[position]++;
+		count++;
+	}
+
+	public void merge(QuantileSketch sketch) {
+		int [] keys = new int[size + sketch.size];
+		long [] counts = new long[keys.length];
+		int i = 0, j = 0, merged = 0;
+		while (i < size || j < sketch.size) {
+			if (j >= sketch.size || (i < size && this.keys[i] < sketch.keys[j])) {
+				keys[merged] = this.keys[i];
+				counts[merged++] = this.counts[i++];
+			}
+			else if (i >= size || sketch.keys[j] < this.keys[i]) {
+				keys[merged] = sketch.keys[j];
+				counts[merged++] = sketch.counts[j++];
+			}
+			else {
+				keys[merged] = this.keys[i];
+				counts[merged++] = this.counts[i++] + sketch.counts[j++];
+			}
+		}
+		this.keys = keys;
+		this.counts = counts;
+		this.size = merged;
+		this.count += sketch.count;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * The estimated value at the given quantile (between 0 and 1), for example 0.99 for the 99th percentile
+	 */
+	public long getQuantile(double quantile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, Math.min(count, (long) Math.ceil(quantile * count)));
+		long seen = 0;
+		for (int i = 0; i < size; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return getValue(keys[i]);
+			}
+		}
+		return getValue(keys[size - 1]);
+	}
+
+	public QuantileSketch copy() {
+		QuantileSketch copy = new QuantileSketch(size);
+		copy.merge(this);
+		return copy;
+	}
+
+	static int getKey(long value) {
+		// -(value + 1) can not overflow, even for Long.MIN_VALUE
+		return value < 0 ? -getIndex(-(value + 1)) - 1 : getIndex(value);
+	}
+
+	// the middle of the bucket
+	static long getValue(int key) {
+		return key < 0 ? -getMagnitude(-key - 1) - 1 : getMagnitude(key);
+	}
+
+	// small values have their own bucket, larger ones are shifted until they fit in the precision
+	private static int getIndex(long magnitude) {
+		int bits = 64 - Long.numberOfLeadingZeros(magnitude);
+		if (bits <= PRECISION) {
+			return (int) magnitude;
+		}
+		int shift = bits - PRECISION;
+		return shift * HALF + (int) (magnitude >>> shift);
+	}
+
+	private static long getMagnitude(int index) {
+		if (index < 2 * HALF) {
+			return index;
+		}
+		int shift = index / HALF - 1;
+		long mantissa = index - shift * HALF;
+		return (mantissa << shift) + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * Formatted as "key:count" pairs separated by a semicolon
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(';');
+			}
+			builder.append(keys[i]).append(':').append(counts[i]);
+		}
+		return builder.toString();
+	}
+
+	public static QuantileSketch parse(String content) throws ParseException {
+		QuantileSketch sketch = new QuantileSketch();
+		if (content.isEmpty()) {
+			return sketch;
+		}
+		String [] pairs = content.split(";");
+		sketch.keys = new int[pairs.length];
+		sketch.counts = new long[pairs.length];
+		for (String pair : pairs) {
+			int index = pair.indexOf(':');
+			if (index < 0) {
+				throw new ParseException("Invalid sketch: " + content, 0);
+			}
+			int key = Integer.parseInt(pair.substring(0, index));
+			long count = Long.parseLong(pair.substring(index + 1));
+			if ((sketch.size > 0 && key <= sketch.keys[sketch.size - 1]) || count <= 0) {
+				throw new ParseException("Invalid sketch: " + content, 0);
+			}
+			sketch.keys[sketch.size] = key;
+			sketch.counts[sketch.size++] = count;
+			sketch.count += count;
+		}
+		return sketch;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+/**
+ * The result of a query over multiple sinks: one value per bucket, the buckets are sorted by timestamp.
+ */
+public class QueryResult {
+
+	private long [] timestamps;
+	private double [] values;
+	private int sinks;
+
+	public QueryResult(long [] timestamps, double [] values, int sinks) {
+		this.timestamps = timestamps;
+		this.values = values;
+		this.sinks = sinks;
+	}
+
+	public int size() {
+		return timestamps.length;
+	}
+
+	// the start of the bucket
+	public long getTimestamp(int index) {
+		return timestamps[index];
+	}
+
+	public double getValue(int index) {
+		return values[index];
+	}
+
+	// the amount of sinks that matched the query
+	public int getSinkCount() {
+		return sinks;
+	}
+}
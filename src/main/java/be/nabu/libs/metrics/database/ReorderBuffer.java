@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.Arrays;
+
+/**
+ * Holds recent points sorted by timestamp until they are old enough to be emitted in order.
+ * Points with the same timestamp are emitted in the order they arrived.
+ */
+public class ReorderBuffer {
+
+	private long [] timestamps = new long[16], values = new long[16];
+	private int start, end;
+
+	public synchronized void insert(long timestamp, long value) {
+		if (end == timestamps.length) {
+			// reclaim the space of emitted points first
+			if (start > 0) {
+				System.arraycopy(timestamps, start, timestamps, 0, end - start);
+				System.arraycopy(values, start, values, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			if (end == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, timestamps.length * 2);
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+		}
+		// points mostly arrive in order so we search from the back
+		int position = end;
+		while (position > start && timestamps[position - 1] > timestamp) {
+			position--;
+		}
+		System.arraycopy(timestamps, position, timestamps, position + 1, end - position);
+		System.arraycopy(values, position, values, position + 1, end - position);
+		timestamps[position] = timestamp;
+		values[position] = value;
+		end++;
+	}
+
+	public synchronized boolean isEmpty() {
+		return start == end;
+	}
+
+	public synchronized int size() {
+		return end - start;
+	}
+
+	public synchronized long getFirstTimestamp() {
+		return timestamps[start];
+	}
+
+	public synchronized long getFirstValue() {
+		return values[start];
+	}
+
+	public synchronized void removeFirst() {
+		start++;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+	}
+
+	public synchronized TimeSeries copy() {
+		TimeSeries series = new TimeSeries(Math.max(1, end - start));
+		for (int i = start; i < end; i++) {
+			series.add(timestamps[i], values[i]);
+		}
+		return series;
+	}
+}
@@ -17,19 +17,31 @@
 
 package be.nabu.libs.metrics.database;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
-import be.nabu.libs.metrics.core.SinkValueImpl;
 import be.nabu.libs.metrics.core.api.SinkSnapshot;
 import be.nabu.libs.metrics.core.api.SinkValue;
+import be.nabu.libs.metrics.database.api.LongPairConsumer;
 import be.nabu.libs.resources.api.AppendableResource;
+import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.WritableResource;
 import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.utils.codec.TranscoderUtils;
 import be.nabu.utils.codec.impl.GZIPDecoder;
 import be.nabu.utils.codec.impl.GZIPEncoder;
@@ -41,25 +53,69 @@ import be.nabu.utils.io.api.WritableContainer;
 
 public class ResourceManager {
 	
-	public static SinkSnapshot load(Resource resource, boolean zipped) throws IOException, ParseException {
-		final List<SinkValue> values = new ArrayList<SinkValue>();
-		ReadableContainer<ByteBuffer> bytes = ((ReadableResource) resource).getReadable();
-		if (zipped) {
-			bytes = TranscoderUtils.wrapReadable(bytes, new GZIPDecoder());
+	public static final String SUMMARY = "summary.idx";
+	// the quantile sketches of the partitions
+	public static final String SKETCH = "sketch.idx";
+	// points that arrived after their partition was closed
+	public static final String DELTA = ".delta";
+	
+	public static SinkSnapshot load(Resource resource) throws IOException, ParseException {
+		PartitionFormat format = PartitionFormat.fromName(resource.getName());
+		if (format == PartitionFormat.BINARY) {
+			return loadBinary(resource);
+		}
+		return load(resource, format == PartitionFormat.CSV);
+	}
+	
+	public static TimeSeries loadSeries(Resource resource) throws IOException, ParseException {
+		PartitionFormat format = PartitionFormat.fromName(resource.getName());
+		if (format == PartitionFormat.BINARY) {
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				return PartitionCodec.decode(IOUtils.toInputStream(readable));
+			}
+			finally {
+				readable.close();
+			}
 		}
-		ReadableContainer<CharBuffer> readable = IOUtils.wrapReadable(bytes, Charset.forName("ASCII"));
+		return loadSeries(resource, format == PartitionFormat.CSV);
+	}
+	
+	/**
+	 * Streams the points of a partition between from and until (inclusive) to the consumer, reading stops once a point after until is found.
+	 * Returns false if the partition contains points after until.
+	 */
+	public static boolean scan(Resource resource, long from, long until, LongPairConsumer consumer) throws IOException, ParseException {
+		PartitionFormat format = PartitionFormat.fromName(resource.getName());
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
 		try {
-			String line = null;
-			int lineCounter = 0;
-			while ((line = toString(IOUtils.delimit(readable, "\n"))) != null) {
-				int index = line.indexOf(',');
-				if (index < 0) {
-					throw new ParseException("Invalid line [" + lineCounter + "]: " + line, lineCounter);
+			if (format == PartitionFormat.BINARY) {
+				byte [] bytes = PartitionCodec.readFully(IOUtils.toInputStream(readable));
+				return PartitionCodec.scan(bytes, bytes.length, from, until, consumer);
+			}
+			if (format == PartitionFormat.CSV) {
+				readable = TranscoderUtils.wrapReadable(readable, new GZIPDecoder());
+			}
+			CsvDecoder decoder = new CsvDecoder(IOUtils.toInputStream(readable));
+			while (decoder.next()) {
+				if (decoder.getTimestamp() > until) {
+					return false;
+				}
+				else if (decoder.getTimestamp() >= from) {
+					consumer.accept(decoder.getTimestamp(), decoder.getValue());
 				}
-				values.add(new SinkValueImpl(Long.parseLong(line.substring(0, index)), Long.parseLong(line.substring(index + 1))));
-				lineCounter++;
 			}
-			
+			return true;
+		}
+		finally {
+			readable.close();
+		}
+	}
+	
+	public static SinkSnapshot loadBinary(Resource resource) throws IOException, ParseException {
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+		try {
+			final List<SinkValue> values = PartitionCodec.decode(IOUtils.toInputStream(readable)).toList();
 			return new SinkSnapshot() {
 				@Override
 				public List<SinkValue> getValues() {
@@ -72,6 +128,69 @@ public class ResourceManager {
 		}
 	}
 	
+	public static void saveBinary(Resource resource, SinkSnapshot snapshot) throws IOException {
+		saveBinary(resource, TimeSeries.of(snapshot.getValues()));
+	}
+	
+	public static void saveBinary(Resource resource, TimeSeries series) throws IOException {
+		byte [] bytes = PartitionCodec.encode(series);
+		WritableContainer<ByteBuffer> writable = ((WritableResource) resource).getWritable();
+		try {
+			OutputStream output = IOUtils.toOutputStream(writable, true);
+			output.write(bytes);
+			output.flush();
+		}
+		finally {
+			writable.close();
+		}
+	}
+	
+	public static void save(Resource resource, SinkSnapshot snapshot, PartitionFormat format) throws IOException {
+		if (format == PartitionFormat.BINARY) {
+			saveBinary(resource, snapshot);
+		}
+		else {
+			save(resource, snapshot, true);
+		}
+	}
+	
+	public static void save(Resource resource, TimeSeries series, PartitionFormat format) throws IOException {
+		if (format == PartitionFormat.BINARY) {
+			saveBinary(resource, series);
+		}
+		else {
+			save(resource, series.view(), true);
+		}
+	}
+	
+	public static SinkSnapshot load(Resource resource, boolean zipped) throws IOException, ParseException {
+		final List<SinkValue> values = loadSeries(resource, zipped).toList();
+		return new SinkSnapshot() {
+			@Override
+			public List<SinkValue> getValues() {
+				return values;
+			}
+		};
+	}
+	
+	public static TimeSeries loadSeries(Resource resource, boolean zipped) throws IOException, ParseException {
+		TimeSeries series = new TimeSeries();
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+		if (zipped) {
+			readable = TranscoderUtils.wrapReadable(readable, new GZIPDecoder());
+		}
+		try {
+			CsvDecoder decoder = new CsvDecoder(IOUtils.toInputStream(readable));
+			while (decoder.next()) {
+				series.add(decoder.getTimestamp(), decoder.getValue());
+			}
+		}
+		finally {
+			readable.close();
+		}
+		return series;
+	}
+	
 	public static void append(Resource resource, SinkSnapshot snapshot, boolean zipped) throws IOException, ParseException {
 		// this is the suboptimal append which loads the entire file then adds and resaves
 		if (!(resource instanceof AppendableResource) || zipped) {
@@ -110,14 +229,213 @@ public class ResourceManager {
 		}
 	}
 
-	private static String toString(ReadableContainer<CharBuffer> readable) throws IOException {
-		char [] stringificationBuffer = new char[4096];
+	/**
+	 * Loads the summaries of the partitions in a directory, keyed by partition timestamp.
+	 * Lines that can not be parsed (e.g. a partial write during a crash) are skipped, the partition will simply be decoded instead.
+	 */
+	public static Map<Long, Aggregate> loadSummaries(ResourceContainer<?> container) throws IOException {
+		Map<Long, Aggregate> summaries = new HashMap<Long, Aggregate>();
+		for (Aggregate summary : loadAggregates(container, SUMMARY)) {
+			summaries.put(summary.getTimestamp(), summary);
+		}
+		return summaries;
+	}
+	
+	/**
+	 * Loads the aggregates in the given file in the order they were written, lines that can not be parsed are skipped.
+	 * Identical lines are only returned once: a partition that is sealed again during recovery writes the exact same aggregates.
+	 */
+	public static List<Aggregate> loadAggregates(ResourceContainer<?> container, String name) throws IOException {
+		List<Aggregate> aggregates = new ArrayList<Aggregate>();
+		Resource resource = container.getChild(name);
+		if (resource instanceof ReadableResource) {
+			Set<String> lines = new HashSet<String>();
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(IOUtils.toInputStream(readable), Charset.forName("ASCII")));
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					if (!lines.add(line)) {
+						continue;
+					}
+					try {
+						aggregates.add(Aggregate.parse(line));
+					}
+					catch (ParseException e) {
+						continue;
+					}
+					catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+			finally {
+				readable.close();
+			}
+		}
+		return aggregates;
+	}
+	
+	/**
+	 * Loads the late points for a partition, sorted by timestamp. Lines that can not be parsed (e.g. a partial write) are skipped.
+	 */
+	public static TimeSeries loadDelta(Resource resource) throws IOException {
+		TimeSeries series = new TimeSeries();
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(IOUtils.toInputStream(readable), Charset.forName("ASCII")));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				int index = line.indexOf(',');
+				if (index < 0) {
+					continue;
+				}
+				try {
+					series.add(Long.parseLong(line.substring(0, index)), Long.parseLong(line.substring(index + 1)));
+				}
+				catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		}
+		finally {
+			readable.close();
+		}
+		series.sort();
+		return series;
+	}
+	
+	public static void appendSummary(ResourceContainer<?> container, Aggregate summary) throws IOException {
+		appendAggregates(container, SUMMARY, Arrays.asList(summary));
+	}
+	
+	public static void appendAggregates(ResourceContainer<?> container, String name, Collection<Aggregate> aggregates) throws IOException {
+		Resource resource = container.getChild(name);
+		if (resource == null) {
+			resource = ((ManageableContainer<?>) container).create(name, "text/plain");
+		}
 		StringBuilder builder = new StringBuilder();
-		long read = 0;
-		while ((read = readable.read(IOUtils.wrap(stringificationBuffer, false))) > 0) {
-			builder.append(new String(stringificationBuffer, 0, (int) read));
+		for (Aggregate aggregate : aggregates) {
+			builder.append(aggregate.toString()).append("\n");
+		}
+		appendLines(resource, builder.toString().getBytes(Charset.forName("ASCII")));
+	}
+	
+	public static void appendSketch(ResourceContainer<?> container, long timestamp, QuantileSketch sketch) throws IOException {
+		Resource resource = container.getChild(SKETCH);
+		if (resource == null) {
+			resource = ((ManageableContainer<?>) container).create(SKETCH, "text/plain");
+		}
+		appendLines(resource, (timestamp + "," + sketch + "\n").getBytes(Charset.forName("ASCII")));
+	}
+	
+	/**
+	 * Loads the quantile sketches of the partitions in a directory, keyed by partition timestamp. Like the summaries, lines that can not be parsed are skipped.
+	 */
+	public static Map<Long, QuantileSketch> loadSketches(ResourceContainer<?> container) throws IOException {
+		Map<Long, QuantileSketch> sketches = new HashMap<Long, QuantileSketch>();
+		Resource resource = container.getChild(SKETCH);
+		if (resource instanceof ReadableResource) {
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(IOUtils.toInputStream(readable), Charset.forName("ASCII")));
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					int index = line.indexOf(',');
+					if (index < 0) {
+						continue;
+					}
+					try {
+						sketches.put(Long.parseLong(line.substring(0, index)), QuantileSketch.parse(line.substring(index + 1)));
+					}
+					catch (ParseException e) {
+						continue;
+					}
+					catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+			finally {
+				readable.close();
+			}
+		}
+		return sketches;
+	}
+	
+	/**
+	 * Replaces the summaries of a directory, this is used to drop the entries of partitions that were merged away.
+	 * Unlike appending, a crash halfway leaves a partial file so this should only be done when the file is known to contain stale entries.
+	 */
+	public static void saveSummaries(ResourceContainer<?> container, Collection<Aggregate> summaries) throws IOException {
+		TreeMap<Long, Aggregate> sorted = new TreeMap<Long, Aggregate>();
+		for (Aggregate summary : summaries) {
+			sorted.put(summary.getTimestamp(), summary);
+		}
+		StringBuilder builder = new StringBuilder();
+		for (Aggregate summary : sorted.values()) {
+			builder.append(summary.toString()).append("\n");
+		}
+		saveLines(container, SUMMARY, builder.toString().getBytes(Charset.forName("ASCII")));
+	}
+	
+	/**
+	 * Replaces the quantile sketches of a directory, the same caveats as for the summaries apply.
+	 */
+	public static void saveSketches(ResourceContainer<?> container, Map<Long, QuantileSketch> sketches) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<Long, QuantileSketch> sketch : new TreeMap<Long, QuantileSketch>(sketches).entrySet()) {
+			builder.append(sketch.getKey()).append(",").append(sketch.getValue()).append("\n");
+		}
+		saveLines(container, SKETCH, builder.toString().getBytes(Charset.forName("ASCII")));
+	}
+	
+	private static void saveLines(ResourceContainer<?> container, String name, byte [] lines) throws IOException {
+		Resource resource = container.getChild(name);
+		if (resource == null) {
+			resource = ((ManageableContainer<?>) container).create(name, "text/plain");
+		}
+		WritableContainer<ByteBuffer> writable = ((WritableResource) resource).getWritable();
+		try {
+			OutputStream output = IOUtils.toOutputStream(writable, true);
+			output.write(lines);
+			output.flush();
+		}
+		finally {
+			writable.close();
+		}
+	}
+	
+	private static void appendLines(Resource resource, byte [] lines) throws IOException {
+		WritableContainer<ByteBuffer> writable;
+		if (resource instanceof AppendableResource) {
+			writable = ((AppendableResource) resource).getAppendable();
+		}
+		// suboptimal: load the existing lines and rewrite them
+		else {
+			byte [] existing = new byte[0];
+			if (resource instanceof ReadableResource) {
+				ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+				try {
+					existing = PartitionCodec.readFully(IOUtils.toInputStream(readable));
+				}
+				finally {
+					readable.close();
+				}
+			}
+			byte [] combined = new byte[existing.length + lines.length];
+			System.arraycopy(existing, 0, combined, 0, existing.length);
+			System.arraycopy(lines, 0, combined, existing.length, lines.length);
+			lines = combined;
+			writable = ((WritableResource) resource).getWritable();
+		}
+		try {
+			OutputStream output = IOUtils.toOutputStream(writable, true);
+			output.write(lines);
+			output.flush();
+		}
+		finally {
+			writable.close();
 		}
-		String string = builder.toString();
-		return string.isEmpty() ? null : string;
 	}
 }
@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import be.nabu.libs.metrics.database.api.WindowStatistics;
+
+/**
+ * Statistics over the points of the last period of time, the window ends at the most recent point that was pushed.
+ * The window is divided in slots, a push only updates the slot it falls in: count, sum, minimum and maximum are O(1), the quantile sketch is a lookup in a handful of buckets.
+ * Reading merges the slots, as a slot is either entirely in the window or not the window can be up to one slot shorter than its length.
+ */
+public class RollingWindow {
+
+	private static final int SLOTS = 10;
+
+	private long window, slotLength;
+	// the slot number (timestamp / slot length) that is currently in each slot, slots are reused in a ring
+	private long [] numbers = new long[SLOTS], counts = new long[SLOTS], sums = new long[SLOTS], minimums = new long[SLOTS], maximums = new long[SLOTS];
+	private QuantileSketch [] sketches = new QuantileSketch[SLOTS];
+	private long latest = Long.MIN_VALUE;
+
+	public RollingWindow(long window) {
+		this.window = window;
+		this.slotLength = Math.max(1, window / SLOTS);
+		for (int i = 0; i < SLOTS; i++) {
+			numbers[i] = Long.MIN_VALUE;
+		}
+	}
+
+	public synchronized void push(long timestamp, long value) {
+		long number = Math.floorDiv(timestamp, slotLength);
+		if (number > latest) {
+			latest = number;
+		}
+		// too old to be in the window
+		else if (number <= latest - SLOTS) {
+			return;
+		}
+		int slot = (int) Math.floorMod(number, (long) SLOTS);
+		if (numbers[slot] != number) {
+			numbers[slot] = number;
+			counts[slot] = 0;
+			sums[slot] = 0;
+			minimums[slot] = Long.MAX_VALUE;
+			maximums[slot] = Long.MIN_VALUE;
+			sketches[slot] = new QuantileSketch();
+		}
+		counts[slot]++;
+		sums[slot] += value;
+		if (value < minimums[slot]) {
+			minimums[slot] = value;
+		}
+		if (value > maximums[slot]) {
+			maximums[slot] = value;
+		}
+		sketches[slot].push(value);
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public synchronized WindowStatistics getStatistics() {
+		long count = 0, sum = 0, minimum = Long.MAX_VALUE, maximum = Long.MIN_VALUE;
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < SLOTS; i++) {
+			if (numbers[i] != Long.MIN_VALUE && numbers[i] > latest - SLOTS && counts[i] > 0) {
+				count += counts[i];
+				sum += sums[i];
+				minimum = Math.min(minimum, minimums[i]);
+				maximum = Math.max(maximum, maximums[i]);
+				sketch.merge(sketches[i]);
+			}
+		}
+		return new Statistics(window, count, sum, count == 0 ? 0 : minimum, count == 0 ? 0 : maximum, sketch);
+	}
+
+	private static class Statistics implements WindowStatistics {
+		private long window, count, sum, minimum, maximum;
+		private QuantileSketch sketch;
+
+		Statistics(long window, long count, long sum, long minimum, long maximum, QuantileSketch sketch) {
+			this.window = window;
+			this.count = count;
+			this.sum = sum;
+			this.minimum = minimum;
+			this.maximum = maximum;
+			this.sketch = sketch;
+		}
+
+		@Override
+		public long getWindow() {
+			return window;
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public long getSum() {
+			return sum;
+		}
+
+		@Override
+		public long getMinimum() {
+			return minimum;
+		}
+
+		@Override
+		public long getMaximum() {
+			return maximum;
+		}
+
+		@Override
+		public double getAverage() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		// the exact minimum and maximum are known so the estimate is kept within them
+		@Override
+		public long getQuantile(double quantile) {
+			return count == 0 ? 0 : Math.max(minimum, Math.min(maximum, sketch.getQuantile(quantile)));
+		}
+	}
+}
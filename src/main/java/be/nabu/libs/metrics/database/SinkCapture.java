@@ -0,0 +1,64 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.resources.api.ResourceContainer;
+
+/**
+ * The state of a sink at the moment it was captured for an export: the names of the partitions on disk per day directory and the points that were not yet in a partition
+ */
+class SinkCapture {
+
+	private String id, category;
+	private ResourceContainer<?> root;
+	private Map<String, Set<String>> days;
+	private TimeSeries unsealed;
+
+	SinkCapture(String id, String category, ResourceContainer<?> root, Map<String, Set<String>> days, TimeSeries unsealed) {
+		this.id = id;
+		this.category = category;
+		this.root = root;
+		this.days = days;
+		this.unsealed = unsealed;
+	}
+
+	String getId() {
+		return id;
+	}
+
+	String getCategory() {
+		return category;
+	}
+
+	ResourceContainer<?> getRoot() {
+		return root;
+	}
+
+	// the day directories ("yyyy/MM/dd") and the names of the partitions in them
+	Map<String, Set<String>> getDays() {
+		return days;
+	}
+
+	TimeSeries getUnsealed() {
+		return unsealed;
+	}
+}
@@ -0,0 +1,330 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A subscription to the points that are added to the sinks with an id that matches a pattern and optionally a given category.
+ * Every matching sink feeds a bounded queue, the queues are delivered to the listener in batches on the delivery executor of the provider so pushing never waits for a listener.
+ * If an interval is set, the points are aggregated in buckets of that size instead, a bucket is delivered once a point of a later bucket arrives.
+ * If none arrives, it is delivered once its interval has passed and it has not received points for an interval, and when the subscription or the provider is closed.
+ * A point that arrives for a bucket that has already been delivered starts a new bucket for the same interval.
+ * Points that are merged into older partitions because they arrived too late are not delivered.
+ */
+public class Subscription {
+
+	private PartitionedSinkProvider provider;
+	private Pattern idPattern;
+	private String category;
+	private SubscriptionListener listener;
+	private long interval;
+	private int capacity;
+	private OverflowPolicy policy;
+	// the feeds with undelivered points, a feed is queued once no matter how many points it gets before the next delivery
+	private Queue<Feed> pending = new ConcurrentLinkedQueue<Feed>();
+	private AtomicBoolean deliveryScheduled = new AtomicBoolean();
+	private Object deliveryLock = new Object();
+	private AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed;
+	// the feeds that are aggregating a bucket and the timer that delivers the buckets that no longer get points
+	private Queue<Feed> open = new ConcurrentLinkedQueue<Feed>();
+	private ScheduledFuture<?> timer;
+
+	Subscription(PartitionedSinkProvider provider, Pattern idPattern, String category, SubscriptionListener listener, long interval, int capacity, OverflowPolicy policy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The capacity of a subscription must be positive: " + capacity);
+		}
+		this.provider = provider;
+		this.idPattern = idPattern;
+		this.category = category;
+		this.listener = listener;
+		this.interval = interval;
+		this.capacity = capacity;
+		this.policy = policy;
+		if (interval > 0) {
+			// aligned with the buckets
+			long now = System.currentTimeMillis();
+			this.timer = provider.getSubscriptionExecutor().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					expire(false);
+				}
+			}, interval - Math.floorMod(now, interval), interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	boolean matches(String id, String category) {
+		return idPattern.matcher(id).matches() && (this.category == null || this.category.equals(category));
+	}
+
+	Feed newFeed(PartitionedSink sink) {
+		return new Feed(sink.getId(), sink.getCategory());
+	}
+
+	/**
+	 * Stops the subscription, the points that are still queued and the buckets that are being aggregated are delivered before it returns
+	 */
+	public void close() {
+		closed = true;
+		provider.unsubscribe(this);
+		if (timer != null) {
+			timer.cancel(false);
+		}
+		expire(true);
+		deliver();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private void schedule() {
+		if (deliveryScheduled.compareAndSet(false, true)) {
+			provider.getSubscriptionExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues the buckets whose interval has passed and that have not received points since the last time we checked, or all of them.
+	 */
+	void expire(boolean all) {
+		long now = System.currentTimeMillis();
+		for (Iterator<Feed> iterator = open.iterator(); iterator.hasNext(); ) {
+			if (!iterator.next().expire(all, now)) {
+				iterator.remove();
+			}
+		}
+		// when all buckets are queued, the caller delivers them itself
+		if (!all && !pending.isEmpty()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Delivers the queued points to the listener. This is done on the delivery executor but can be called to deliver synchronously, e.g. before shutting down.
+	 */
+	public void deliver() {
+		synchronized(deliveryLock) {
+			// reset before delivering, anything queued from now on will schedule us again
+			deliveryScheduled.set(false);
+			Feed feed;
+			while ((feed = pending.poll()) != null) {
+				try {
+					feed.deliver();
+				}
+				// a failing delivery should not stop the delivery for the other sinks
+				catch (RuntimeException e) {
+					continue;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The amount of points (or buckets) that were dropped or coalesced because the listener did not keep up
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * The queue of a single sink, the points are kept in a ring that grows up to the capacity of the subscription
+	 */
+	class Feed {
+		private String id, category;
+		private long [] timestamps = new long[Math.min(16, capacity)], values = new long[timestamps.length];
+		private int head, size;
+		// the bucket that is being aggregated and the completed ones that are waiting for delivery
+		private Aggregate bucket;
+		private ArrayDeque<Aggregate> aggregates = new ArrayDeque<Aggregate>();
+		private boolean queued;
+		// whether we are among the open feeds and whether the bucket got points since it was last checked
+		private boolean registered, touched;
+
+		Feed(String id, String category) {
+			this.id = id;
+			this.category = category;
+		}
+
+		Subscription getSubscription() {
+			return Subscription.this;
+		}
+
+		void offer(long timestamp, long value) {
+			if (closed) {
+				return;
+			}
+			synchronized(this) {
+				if (interval > 0) {
+					long start = timestamp - Math.floorMod(timestamp, interval);
+					if (bucket != null && bucket.getTimestamp() != start) {
+						queue(bucket);
+						bucket = null;
+					}
+					if (bucket == null) {
+						bucket = new Aggregate(start);
+						if (!registered) {
+							registered = true;
+							open.add(this);
+						}
+					}
+					bucket.push(timestamp, value);
+					touched = true;
+				}
+				else {
+					queue(timestamp, value);
+				}
+				if (queued || (size == 0 && aggregates.isEmpty())) {
+					return;
+				}
+				queued = true;
+			}
+			pending.add(this);
+			schedule();
+		}
+
+		// returns false if there is no longer a bucket to check
+		boolean expire(boolean all, long now) {
+			synchronized(this) {
+				if (bucket == null) {
+					registered = false;
+					return false;
+				}
+				if (!all && (bucket.getTimestamp() + interval > now || touched)) {
+					touched = false;
+					return true;
+				}
+				queue(bucket);
+				bucket = null;
+				registered = false;
+				if (queued) {
+					return false;
+				}
+				queued = true;
+			}
+			pending.add(this);
+			return false;
+		}
+
+		private void queue(long timestamp, long value) {
+			if (size == capacity) {
+				dropped.incrementAndGet();
+				switch (policy) {
+					case DROP_NEWEST:
+						return;
+					case DROP_OLDEST:
+						head = (head + 1) % timestamps.length;
+						size--;
+					break;
+					case COALESCE:
+						int last = (head + size - 1) % timestamps.length;
+						timestamps[last] = timestamp;
+						values[last] = value;
+						return;
+				}
+			}
+			else if (size == timestamps.length) {
+				int length = Math.min(capacity, timestamps.length * 2);
+				long [] timestamps = new long[length], values = new long[length];
+				for (int i = 0; i < size; i++) {
+					timestamps[i] = this.timestamps[(head + i) % this.timestamps.length];
+					values[i] = this.values[(head + i) % this.values.length];
+				}
+				this.timestamps = timestamps;
+				this.values = values;
+				head = 0;
+			}
+			int index = (head + size) % timestamps.length;
+			timestamps[index] = timestamp;
+			values[index] = value;
+			size++;
+		}
+
+		private void queue(Aggregate aggregate) {
+			if (aggregates.size() == capacity) {
+				dropped.incrementAndGet();
+				switch (policy) {
+					case DROP_NEWEST:
+						return;
+					case DROP_OLDEST:
+						aggregates.removeFirst();
+					break;
+					case COALESCE:
+						aggregates.peekLast().merge(aggregate);
+						return;
+				}
+			}
+			aggregates.add(aggregate);
+		}
+
+		private void deliver() {
+			TimeSeries points = null;
+			List<Aggregate> aggregates = null;
+			synchronized(this) {
+				queued = false;
+				if (size > 0) {
+					points = new TimeSeries(size);
+					for (int i = 0; i < size; i++) {
+						points.add(timestamps[(head + i) % timestamps.length], values[(head + i) % values.length]);
+					}
+					head = 0;
+					size = 0;
+				}
+				if (!this.aggregates.isEmpty()) {
+					aggregates = new ArrayList<Aggregate>(this.aggregates);
+					this.aggregates.clear();
+				}
+			}
+			if (points != null) {
+				listener.points(id, category, points.view());
+			}
+			if (aggregates != null) {
+				listener.aggregates(id, category, aggregates);
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.metrics.database;
+
+import java.util.List;
+
+/**
+ * Receives the points of a subscription. It is called on a delivery thread of the provider and never concurrently for the same subscription.
+ */
+public interface SubscriptionListener {
+	// the points that were added to the sink since the previous delivery, in order
+	public default void points(String id, String category, TimeSeries.View points) {
+		// do nothing
+	}
+	// the buckets of an aggregating subscription that were completed since the previous delivery
+	public default void aggregates(String id, String category, List<Aggregate> aggregates) {
+		// do nothing
+	}
+}
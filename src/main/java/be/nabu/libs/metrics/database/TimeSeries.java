@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.metrics.core.SinkValueImpl;
+import be.nabu.libs.metrics.core.api.SinkSnapshot;
+import be.nabu.libs.metrics.core.api.SinkValue;
+
+/**
+ * A series of points sorted by timestamp, backed by parallel primitive arrays.
+ * Points are appended and the arrays are copied when they grow or when a point is inserted, this means a view can safely keep pointing to the arrays it was created with.
+ */
+public class TimeSeries {
+
+	private long [] timestamps, values;
+	private int size;
+
+	public TimeSeries() {
+		this(16);
+	}
+
+	public TimeSeries(int capacity) {
+		this.timestamps = new long[Math.max(1, capacity)];
+		this.values = new long[Math.max(1, capacity)];
+	}
+
+	public synchronized void add(long timestamp, long value) {
+		if (size == timestamps.length) {
+			int capacity = timestamps.length * 2;
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		timestamps[size] = timestamp;
+		values[size++] = value;
+	}
+
+	/**
+	 * Inserts a point at its sorted position (after any points with the same timestamp).
+	 * Unlike add this always copies the arrays so existing views are not affected.
+	 */
+	public synchronized void insert(long timestamp, long value) {
+		int position = view().upperBound(timestamp);
+		long [] timestamps = new long[Math.max(this.timestamps.length, size + 1)];
+		long [] values = new long[timestamps.length];
+		System.arraycopy(this.timestamps, 0, timestamps, 0, position);
+		System.arraycopy(this.values, 0, values, 0, position);
+		timestamps[position] = timestamp;
+		values[position] = value;
+		System.arraycopy(this.timestamps, position, timestamps, position + 1, size - position);
+		System.arraycopy(this.values, position, values, position + 1, size - position);
+		this.timestamps = timestamps;
+		this.values = values;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the points by timestamp, keeping the insertion order for equal timestamps.
+	 * This modifies the series in place so it must only be used on a series that is not shared, we use insertion sort as the points are expected to be nearly sorted.
+	 */
+	synchronized void sort() {
+		for (int i = 1; i < size; i++) {
+			long timestamp = timestamps[i], value = values[i];
+			int j = i - 1;
+			while (j >= 0 && timestamps[j] > timestamp) {
+				timestamps[j + 1] = timestamps[j];
+				values[j + 1] = values[j];
+				j--;
+			}
+			timestamps[j + 1] = timestamp;
+			values[j + 1] = value;
+		}
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getTimestamp(int index) {
+		return timestamps[index];
+	}
+
+	public long getValue(int index) {
+		return values[index];
+	}
+
+	// estimate of the heap used by this series: the arrays and the object headers
+	public long getMemorySize() {
+		return 64 + timestamps.length * 16L;
+	}
+
+	/**
+	 * A view on the points that are currently in the series, points added afterwards are not visible in the view
+	 */
+	public synchronized View view() {
+		return new View(timestamps, values, 0, size);
+	}
+
+	public List<SinkValue> toList() {
+		List<SinkValue> list = new ArrayList<SinkValue>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(new SinkValueImpl(timestamps[i], values[i]));
+		}
+		return list;
+	}
+
+	/**
+	 * Merges two sorted series into a new one, for equal timestamps the points of the first series come first
+	 */
+	public static TimeSeries merge(View first, View second) {
+		TimeSeries merged = new TimeSeries(first.size() + second.size());
+		int i = 0, j = 0;
+		while (i < first.size() || j < second.size()) {
+			if (j >= second.size() || (i < first.size() && first.getTimestamp(i) <= second.getTimestamp(j))) {
+				merged.add(first.getTimestamp(i), first.getValue(i));
+				i++;
+			}
+			else {
+				merged.add(second.getTimestamp(j), second.getValue(j));
+				j++;
+			}
+		}
+		return merged;
+	}
+
+	public static TimeSeries of(List<SinkValue> values) {
+		TimeSeries series = new TimeSeries(values.size());
+		for (SinkValue value : values) {
+			series.add(value.getTimestamp(), value.getValue());
+		}
+		return series;
+	}
+
+	/**
+	 * An immutable slice of a series, the sink values are only created when they are requested.
+	 * Unlike the snapshots returned by the sinks, the values of a view can not be sorted or modified.
+	 */
+	public static class View extends AbstractList<SinkValue> implements SinkSnapshot {
+		private long [] timestamps, values;
+		private int offset, length;
+
+		View(long [] timestamps, long [] values, int offset, int length) {
+			this.timestamps = timestamps;
+			this.values = values;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public List<SinkValue> getValues() {
+			return this;
+		}
+
+		@Override
+		public SinkValue get(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + length);
+			}
+			return new SinkValueImpl(timestamps[offset + index], values[offset + index]);
+		}
+
+		@Override
+		public int size() {
+			return length;
+		}
+
+		public long getTimestamp(int index) {
+			return timestamps[offset + index];
+		}
+
+		public long getValue(int index) {
+			return values[offset + index];
+		}
+
+		/**
+		 * The index of the first point with a timestamp at or after the given timestamp
+		 */
+		public int lowerBound(long timestamp) {
+			int low = 0, high = length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (timestamps[offset + middle] < timestamp) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * The index of the first point with a timestamp after the given timestamp
+		 */
+		public int upperBound(long timestamp) {
+			int low = 0, high = length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (timestamps[offset + middle] <= timestamp) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		public View between(long from, long until) {
+			int start = lowerBound(from);
+			return subView(start, Math.max(start, upperBound(until)));
+		}
+
+		public View subView(int fromIndex, int toIndex) {
+			if (fromIndex < 0 || toIndex > length || fromIndex > toIndex) {
+				throw new IndexOutOfBoundsException("Range: " + fromIndex + "-" + toIndex + ", size: " + length);
+			}
+			return new View(timestamps, values, offset + fromIndex, toIndex - fromIndex);
+		}
+	}
+}
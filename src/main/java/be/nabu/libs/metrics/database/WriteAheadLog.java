@@ -0,0 +1,237 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * The temporary buffer that contains the points of the current partition.
+ * Points are kept in memory until they are flushed, depending on the durability settings this happens:
+ * - immediately if there is no executor
+ * - when the amount of pending points reaches the flush size, the flush is done on the executor so the pushing thread does not wait for it
+ * - when the provider flushes all logs at its configured interval
+ */
+public class WriteAheadLog {
+
+	private Resource resource;
+	private int flushSize;
+	private Executor executor;
+	private TimeSeries pending = new TimeSeries();
+	// the lock for the file itself, the pending points are guarded by the instance itself
+	private Object ioLock = new Object();
+	private AtomicBoolean flushScheduled = new AtomicBoolean();
+	// set if the log is a local file that is written through a mapped segment
+	private MappedSegment segment;
+	// if set, the time it takes to append to the file is recorded
+	private Instrument instrument;
+
+	public WriteAheadLog(Resource resource, int flushSize, Executor executor) {
+		this(resource, flushSize, executor, 0);
+	}
+
+	/**
+	 * If a segment size is given and the resource is a local file, the log is written through a memory mapped region that grows in segments of this size
+	 */
+	public WriteAheadLog(Resource resource, int flushSize, Executor executor, int segmentSize) {
+		this.resource = resource;
+		this.flushSize = flushSize;
+		this.executor = executor;
+		File file = segmentSize > 0 ? MappedStorage.getFile(resource) : null;
+		if (file != null) {
+			this.segment = new MappedSegment(file, segmentSize);
+		}
+	}
+
+	/**
+	 * Loads the points in the log. If the points do not run until the end of the file (e.g. the zeros that a mapped segment leaves behind after an unclean shutdown),
+	 * the log is rewritten with the points that were loaded, otherwise new points would be appended after the padding and lost on the next load.
+	 */
+	public TimeSeries load() throws IOException, ParseException {
+		TimeSeries series = new TimeSeries();
+		boolean complete;
+		if (segment == null) {
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+			try {
+				complete = decode(IOUtils.toInputStream(readable), series);
+			}
+			finally {
+				readable.close();
+			}
+		}
+		else {
+			complete = decode(new ByteArrayInputStream(segment.read()), series);
+		}
+		if (!complete) {
+			reset(series);
+		}
+		return series;
+	}
+
+	// returns whether the entire input was decoded
+	private static boolean decode(InputStream input, TimeSeries series) throws IOException, ParseException {
+		CsvDecoder decoder = new CsvDecoder(input);
+		while (decoder.next()) {
+			series.add(decoder.getTimestamp(), decoder.getValue());
+		}
+		return decoder.isExhausted();
+	}
+
+	public void append(long timestamp, long value) throws IOException, ParseException {
+		int size;
+		synchronized(this) {
+			pending.add(timestamp, value);
+			size = pending.size();
+		}
+		flushIfNeeded(size);
+	}
+	
+	/**
+	 * Appends a batch of points, at most one flush is done for the entire batch
+	 */
+	public void append(TimeSeries.View points) throws IOException, ParseException {
+		int size;
+		synchronized(this) {
+			for (int i = 0; i < points.size(); i++) {
+				pending.add(points.getTimestamp(i), points.getValue(i));
+			}
+			size = pending.size();
+		}
+		flushIfNeeded(size);
+	}
+	
+	private void flushIfNeeded(int size) throws IOException, ParseException {
+		if (executor == null) {
+			flush();
+		}
+		else if (flushSize > 0 && size >= flushSize && flushScheduled.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					try {
+						flush();
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+	}
+
+	public void flush() throws IOException, ParseException {
+		synchronized(ioLock) {
+			TimeSeries batch;
+			synchronized(this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new TimeSeries();
+			}
+			try {
+				long started = instrument == null ? 0 : System.nanoTime();
+				if (segment == null) {
+					ResourceManager.append(resource, batch.view(), false);
+				}
+				else {
+					segment.append(toCsv(batch.view()));
+					segment.force();
+				}
+				if (instrument != null) {
+					instrument.record(System.nanoTime() - started);
+				}
+			}
+			// put the points back so the next flush can try again
+			catch (IOException e) {
+				restore(batch);
+				throw e;
+			}
+			catch (RuntimeException e) {
+				restore(batch);
+				throw e;
+			}
+		}
+	}
+
+	private synchronized void restore(TimeSeries batch) {
+		TimeSeries.View view = pending.view();
+		for (int i = 0; i < view.size(); i++) {
+			batch.add(view.getTimestamp(i), view.getValue(i));
+		}
+		pending = batch;
+	}
+
+	/**
+	 * Replaces the entire content of the log, any pending points are discarded
+	 */
+	public void reset(TimeSeries content) throws IOException {
+		synchronized(ioLock) {
+			synchronized(this) {
+				pending = new TimeSeries();
+			}
+			if (segment == null) {
+				ResourceManager.save(resource, content.view(), false);
+			}
+			else {
+				segment.write(toCsv(content.view()));
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * Releases the mapped segment (if any), the log can still be used afterwards
+	 */
+	public void close() throws IOException {
+		if (segment != null) {
+			synchronized(ioLock) {
+				segment.close();
+			}
+		}
+	}
+
+	static byte [] toCsv(TimeSeries.View points) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < points.size(); i++) {
+			builder.append(points.getTimestamp(i)).append(',').append(points.getValue(i)).append('\n');
+		}
+		return builder.toString().getBytes(Charset.forName("ASCII"));
+	}
+
+	public void setInstrument(Instrument instrument) {
+		this.instrument = instrument;
+	}
+
+	public synchronized int getPending() {
+		return pending.size();
+	}
+}
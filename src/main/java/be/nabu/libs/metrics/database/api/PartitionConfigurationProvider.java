@@ -20,4 +20,28 @@ package be.nabu.libs.metrics.database.api;
 public interface PartitionConfigurationProvider {
 	public long getPartitionInterval(String id, String category);
 	public long getPartitionSize(String id, String category);
+	// how long (in ms) points are held back so points that arrive out of order can still be added in order, 0 disables this
+	public default long getReorderWindow(String id, String category) {
+		return 0;
+	}
+	// whether points that arrive too late to be added in order are merged into the historic partitions instead of being rejected
+	public default boolean isLateDataAllowed(String id, String category) {
+		return false;
+	}
+	// the resolutions (bucket sizes in ms) at which rollups are kept, rollups are computed when a partition is closed
+	public default long [] getRollupResolutions(String id, String category) {
+		return new long[0];
+	}
+	// how long (in ms) the rollups at the given resolution are kept, 0 keeps them forever
+	public default long getRollupRetention(String id, String category, long resolution) {
+		return 0;
+	}
+	// the lengths (in ms) of the rolling windows that are kept up to date as points are pushed, e.g. 1, 5 and 60 minutes
+	public default long [] getStatisticsWindows(String id, String category) {
+		return new long[0];
+	}
+	// how long (in ms) partitions are kept, entire days are removed by the compaction once they expire, 0 keeps them forever
+	public default long getRetention(String id, String category) {
+		return 0;
+	}
 }
@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database.api;
+
+/**
+ * The statistics of the points in a rolling window
+ */
+public interface WindowStatistics {
+	// the length of the window in ms
+	public long getWindow();
+	public long getCount();
+	public long getSum();
+	public long getMinimum();
+	public long getMaximum();
+	public double getAverage();
+	// the estimated value at the given quantile (between 0 and 1)
+	public long getQuantile(double quantile);
+}
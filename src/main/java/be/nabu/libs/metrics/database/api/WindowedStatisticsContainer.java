@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.metrics.database.api;
+
+import be.nabu.libs.metrics.core.api.StatisticsContainer;
+
+/**
+ * A statistics container that also keeps statistics over rolling windows of time
+ */
+public interface WindowedStatisticsContainer extends StatisticsContainer {
+	// the lengths (in ms) of the available windows
+	public long [] getStatisticsWindows();
+	// the statistics of the window with the given length, null if there is no such window
+	public WindowStatistics getStatistics(long window);
+}